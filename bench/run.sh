@@ -0,0 +1,27 @@
+#!/bin/bash
+
+# Benchmarks of the kinematics core and the rendering prep, JMH style.
+# Arguments go to the harness, e.g.
+# bench/run.sh -wi 3 -i 5 -t 1000 -csv results.csv "fk|ik.step"
+
+cd "$(dirname "$0")"
+
+# the core is its own module, build it first
+../core/build.sh || exit 1
+
+JME="../lib/jME3-core.jar:../lib/jME3-desktop.jar:../lib/jME3-plugins.jar"
+
+echo Renew bench/bin/ folder to store compiled classes
+rm -rf bin/
+mkdir bin
+echo
+
+echo Compiling the benchmarks ...
+ # the jME front end classes are picked up from ../src as needed
+javac -d bin -cp "../core/kinematics-core.jar:../lib/ejml-0.24.jar:$JME" -sourcepath ../src src/bench/*.java || exit 1
+
+echo DONE
+echo
+
+echo Running ...
+java -cp "bin:../core/kinematics-core.jar:../lib/ejml-0.24.jar:$JME" bench.Harness "$@" 2> /dev/null
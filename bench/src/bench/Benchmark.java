@@ -0,0 +1,34 @@
+package bench;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * One benchmark: a hot path measured for each of its parameters
+ * (chain length, rig name...). setup() isn't measured, op() is.
+ */
+public abstract class Benchmark
+{
+	private final String name;
+	private final String[] params;
+	// Results are folded in here so the JIT can't drop the work
+	protected double sink;
+
+	public Benchmark(String name, String ... params)
+	{
+		this.name = name;
+		this.params = params;
+	}
+
+	/**
+	 * Build the rig and warm state for one parameter
+	 */
+	protected abstract void setup(String param);
+
+	/**
+	 * One operation
+	 */
+	protected abstract void op();
+
+	public String getName() {	return this.name;	}
+
+	public String[] getParams() {	return this.params;	}
+}
@@ -0,0 +1,156 @@
+package bench;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Runs the benchmarks like JMH does: timed warmup iterations, then timed
+ * measurement iterations, reporting throughput and allocation per operation
+ * (JMH's gc profiler "alloc.rate.norm") from the thread's allocation counter.
+ *
+ * Usage: bench/run.sh [-wi 3] [-i 5] [-t 1000] [-csv results.csv] [regex]
+ * -wi warmup iterations, -i measurement iterations, -t milliseconds per iteration,
+ * -csv appends every result with a timestamp, to compare runs over time,
+ * regex only runs the benchmarks whose "name:param" matches.
+ */
+public class Harness
+{
+	private int warmups = 3;
+	private int iterations = 5;
+	private long iterationNanos = 1000000000L;
+	private String csv = null;
+	private Pattern filter = null;
+	// Duration of the last iteration, kept out of the allocation count
+	private long lastNanos;
+
+	private static final com.sun.management.ThreadMXBean threads = allocationCounter();
+
+	public static void main(String[] args) throws IOException
+	{
+		Harness harness = new Harness();
+		for (int i = 0; i < args.length; i ++)
+		{
+			if (args[i].equals("-wi"))
+				harness.warmups = Integer.parseInt(args[++ i]);
+			else if (args[i].equals("-i"))
+				harness.iterations = Integer.parseInt(args[++ i]);
+			else if (args[i].equals("-t"))
+				harness.iterationNanos = Long.parseLong(args[++ i]) * 1000000L;
+			else if (args[i].equals("-csv"))
+				harness.csv = args[++ i];
+			else
+				harness.filter = Pattern.compile(args[i]);
+		}
+
+		List<Benchmark> all = new ArrayList<Benchmark>();
+		KinematicsBenchmarks.register(all);
+		RenderBenchmarks.register(all);
+		harness.run(all);
+	}
+
+	public void run(List<Benchmark> benchmarks) throws IOException
+	{
+		PrintWriter out = csv == null ? null : new PrintWriter(new FileWriter(csv, true));
+		String stamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date());
+		System.out.println(String.format("%-28s %8s %16s %12s %12s %12s",
+				"Benchmark", "Param", "ops/s", "error", "B/op", "MB/s"));
+		for (Benchmark b : benchmarks)
+			for (String param : b.getParams())
+			{
+				if (filter != null && ! filter.matcher(b.getName() + ":" + param).find())
+					continue;
+				double[] r = measure(b, param);
+				System.out.println(String.format("%-28s %8s %16.1f %12.1f %12.1f %12.2f",
+						b.getName(), param, r[0], r[1], r[2], r[3]));
+				if (out != null)
+				{
+					out.println(String.format("%s,%s,%s,%.1f,%.1f,%.1f,%.2f",
+							stamp, b.getName(), param, r[0], r[1], r[2], r[3]));
+					out.flush();
+				}
+			}
+		if (out != null)	out.close();
+	}
+
+	/**
+	 * @return ops/s, its standard deviation over the iterations, bytes allocated per op, MB/s
+	 */
+	private double[] measure(Benchmark b, String param)
+	{
+		b.setup(param);
+		for (int i = 0; i < warmups; i ++)
+			iteration(b);
+
+		double sum = 0, sumSq = 0;
+		long ops = 0, bytes = 0, nanos = 0;
+		for (int i = 0; i < iterations; i ++)
+		{
+			long allocated = allocatedBytes();
+			long n = iteration(b);
+			bytes += allocatedBytes() - allocated;
+			double throughput = n * 1e9 / lastNanos;
+			sum += throughput;
+			sumSq += throughput * throughput;
+			ops += n;
+			nanos += lastNanos;
+		}
+		double mean = sum / iterations;
+		double error = Math.sqrt(Math.max(sumSq / iterations - mean * mean, 0));
+		if (threads == null)
+			return new double[] {mean, error, Double.NaN, Double.NaN};
+		return new double[] {mean, error, (double) bytes / ops, bytes / 1e6 / (nanos / 1e9)};
+	}
+
+	/**
+	 * Run batches of operations for one iteration's worth of time.
+	 * Batches grow until one takes about a millisecond, so reading the clock
+	 * doesn't count against tiny operations.
+	 * @return how many operations ran
+	 */
+	private long iteration(Benchmark b)
+	{
+		long ops = 0, batch = 1;
+		long start = System.nanoTime(), now = start;
+		while (now - start < iterationNanos)
+		{
+			long t = now;
+			for (long k = 0; k < batch; k ++)
+				b.op();
+			ops += batch;
+			now = System.nanoTime();
+			if (now - t < 1000000L)
+				batch *= 2;
+		}
+		lastNanos = now - start;
+		return ops;
+	}
+
+	private static long allocatedBytes()
+	{
+		return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * HotSpot's per-thread allocation counter, null on other VMs
+	 */
+	private static com.sun.management.ThreadMXBean allocationCounter()
+	{
+		try {
+			com.sun.management.ThreadMXBean bean =
+					(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			if (! bean.isThreadAllocatedMemorySupported())	return null;
+			bean.setThreadAllocatedMemoryEnabled(true);
+			return bean;
+		} catch (ClassCastException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,352 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import kinematics.*;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Hot paths of the kinematics core: forward kinematics propagation,
+ * single IK steps and full IK convergence, clip playback, motion capture parsing.
+ */
+public class KinematicsBenchmarks
+{
+	public static void register(List<Benchmark> benchmarks)
+	{
+		benchmarks.add(new FK("fk.rotateRoot", 0f));
+		benchmarks.add(new FK("fk.rotateMid", 0.5f));
+
+		IKSolver.Factory[] factories = {
+			new IKSolver.Factory() {	public IKSolver create() {	return new JacobianSolver();	}	},
+			new IKSolver.Factory() {	public IKSolver create() {	return new FABRIKSolver();	}	},
+			new IKSolver.Factory() {	public IKSolver create() {	return new CCDSolver();	}	}};
+		String[] names = {"jacobian", "fabrik", "ccd"};
+		for (int k = 0; k < factories.length; k ++)
+		{
+			benchmarks.add(new IKStep("ik.step." + names[k], factories[k]));
+			benchmarks.add(new IKConverge("ik.converge." + names[k], factories[k]));
+		}
+		benchmarks.add(new Spider());
+		benchmarks.add(new ClipSample("clip.slerp", true));
+		benchmarks.add(new ClipSample("clip.nlerp", false));
+		benchmarks.add(new MocapRead());
+	}
+
+	/**
+	 * Forward kinematics: rotate one joint, refresh its subtree
+	 */
+	private static class FK extends Benchmark
+	{
+		// Where the rotated joint sits, 0 = root, 0.5 = middle
+		private final float at;
+		private Pose pose;
+		private int joint;
+		private float angle = 1e-3f;
+
+		FK(String name, float at)
+		{
+			super(name, Rigs.SIZES_AND_SPIDER);
+			this.at = at;
+		}
+
+		@Override
+		protected void setup(String param)
+		{
+			pose = param.equals("spider") ? Rigs.spider(new int[8]) : Rigs.chain(Integer.parseInt(param));
+			joint = (int) (at * pose.size());
+		}
+
+		@Override
+		protected void op()
+		{
+			angle = -angle; // swing back and forth
+			pose.rotateAxis(joint, 0, 0, 1, angle);
+			float[] pos = pose.getWorldPos();
+			sink += pos[pos.length - 1];
+		}
+	}
+
+	/**
+	 * Chain IK: end joint far enough down the chain, targets it can reach
+	 */
+	private static abstract class IK extends Benchmark
+	{
+		protected final IKSolver solver;
+		protected Pose pose;
+		protected int end;
+		protected float reach;
+		// Two targets within reach
+		protected final float[] targets = new float[6];
+
+		IK(String name, IKSolver.Factory factory)
+		{
+			super(name, Rigs.SIZES);
+			this.solver = factory.create();
+			AbstractIKSolver s = (AbstractIKSolver) solver;
+			s.setTimeBudget(Long.MAX_VALUE); // count iterations, not wall time
+		}
+
+		@Override
+		protected void setup(String param)
+		{
+			pose = Rigs.chain(Integer.parseInt(param));
+			end = pose.size() - 1;
+			reach = pose.reach(0, end);
+			// A single bone only reaches the sphere around its root
+			float r = pose.size() > 2 ? 0.6f * reach : reach;
+			float[] dirs = {2, 1, 0, 1, 2, 1};
+			for (int k = 0; k < 6; k += 3)
+			{
+				float len = (float) Math.sqrt(dirs[k]*dirs[k] + dirs[k+1]*dirs[k+1] + dirs[k+2]*dirs[k+2]);
+				for (int c = 0; c < 3; c ++)
+					targets[k+c] = dirs[k+c] * r / len;
+			}
+		}
+	}
+
+	/**
+	 * One IK iteration, the target alternates so there's always work to do
+	 */
+	private static class IKStep extends IK
+	{
+		private boolean flip;
+
+		IKStep(String name, IKSolver.Factory factory)
+		{
+			super(name, factory);
+			AbstractIKSolver s = (AbstractIKSolver) solver;
+			s.setMaxIterations(1);
+			s.setTolerance(0);
+		}
+
+		@Override
+		protected void op()
+		{
+			flip = ! flip;
+			int t = flip ? 0 : 3;
+			sink += solver.solve(pose, end, targets[t], targets[t+1], targets[t+2], reach).getResidual();
+		}
+	}
+
+	/**
+	 * IK from the straight chain to a fixed target, until converged
+	 */
+	private static class IKConverge extends IK
+	{
+		private Pose start;
+
+		IKConverge(String name, IKSolver.Factory factory)
+		{
+			super(name, factory);
+			((AbstractIKSolver) solver).setMaxIterations(1000);
+		}
+
+		@Override
+		protected void setup(String param)
+		{
+			super.setup(param);
+			start = new Pose(pose);
+		}
+
+		@Override
+		protected void op()
+		{
+			pose.set(start);
+			sink += solver.solve(pose, end, targets[3], targets[4], targets[5], reach).getResidual();
+		}
+	}
+
+	/**
+	 * The spider's eight feet each pulled to a target, serial or parallel legs
+	 */
+	private static class Spider extends Benchmark
+	{
+		private final int[] feet = new int[8];
+		private final float[] targets = new float[3 * 8];
+		private Pose pose, start;
+		private MultiIKSolver solver;
+
+		// Shared by all runs
+		private final ForkJoinPool pool = new ForkJoinPool();
+
+		Spider()
+		{
+			super("ik.spider", "serial", "parallel");
+		}
+
+		@Override
+		protected void setup(String param)
+		{
+			pose = Rigs.spider(feet);
+			start = new Pose(pose);
+			solver = new MultiIKSolver(new IKSolver.Factory()
+			{
+				@Override
+				public IKSolver create()
+				{
+					JacobianSolver solver = new JacobianSolver();
+					solver.setTimeBudget(Long.MAX_VALUE);
+					return solver;
+				}
+			}, pool);
+			solver.setParallel(param.equals("parallel"));
+			solver.setEndJoints(pose, feet);
+			float[] pos = pose.getWorldPos();
+			for (int k = 0; k < 8; k ++)
+			{
+				int s = 3 * pose.slot(feet[k]);
+				targets[3*k] = pos[s] + 0.3f;
+				targets[3*k+1] = pos[s+1] - 0.4f;
+				targets[3*k+2] = pos[s+2] + 0.2f;
+			}
+		}
+
+		@Override
+		protected void op()
+		{
+			pose.set(start);
+			for (int k = 0; k < 8; k ++)
+				solver.setTarget(k, targets[3*k], targets[3*k+1], targets[3*k+2]);
+			sink += solver.solve().getResidual();
+		}
+	}
+
+	/**
+	 * Playing a clip back at display rate: one sample in between two keyframes, then the pose refresh
+	 */
+	private static class ClipSample extends Benchmark
+	{
+		// Keyframes recorded at 30 per second, played at 60
+		private static final int FRAMES = 3000;
+		private final boolean slerp;
+		private Pose pose;
+		private PoseClip clip;
+		private float time, end;
+
+		ClipSample(String name, boolean slerp)
+		{
+			super(name, Rigs.SIZES);
+			this.slerp = slerp;
+		}
+
+		@Override
+		protected void setup(String param)
+		{
+			pose = Rigs.chain(Integer.parseInt(param));
+			try {
+				File file = File.createTempFile("clip", ".pose");
+				file.deleteOnExit();
+				PoseRecorder recorder = new PoseRecorder(file, pose.size());
+				for (int f = 0; f < FRAMES; f ++)
+				{
+					for (int id = 0; id < pose.size(); id ++)
+						pose.rotateAxis(id, 0, (id % 2) * 0.6f, 0.8f, 0.02f);
+					recorder.record(pose, f / 30f);
+				}
+				recorder.close();
+				if (clip != null)	clip.close();
+				clip = new PoseClip(file);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			clip.setSlerp(slerp);
+			end = clip.getEndTime();
+			time = 0;
+		}
+
+		@Override
+		protected void op()
+		{
+			time += 1 / 60f;
+			if (time > end)	time = 0;
+			clip.sample(time, pose);
+			float[] pos = pose.getWorldPos();
+			sink += pos[pos.length - 1];
+		}
+	}
+
+	/**
+	 * Streaming a motion capture: one frame parsed into the pose, ops/s is the loader's frames/s.
+	 * The capture is a chain of n joints, like a 31 joint human, with random angles
+	 */
+	private static class MocapRead extends Benchmark
+	{
+		private static final int FRAMES = 5000;
+		private File file;
+		private BiovisionReader reader;
+		private Pose pose;
+
+		MocapRead()
+		{
+			super("mocap.read", "31", "100");
+		}
+
+		@Override
+		protected void setup(String param)
+		{
+			int n = Integer.parseInt(param);
+			try {
+				file = File.createTempFile("mocap", ".bvh");
+				file.deleteOnExit();
+				PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+				out.println("HIERARCHY");
+				for (int i = 0; i < n; i ++)
+				{
+					out.println((i == 0 ? "ROOT" : "JOINT") + " J" + i + " {");
+					out.println("OFFSET 0 " + (i == 0 ? 0 : 5) + " 0");
+					out.println(i == 0 ? "CHANNELS 6 Xposition Yposition Zposition Zrotation Xrotation Yrotation"
+									: "CHANNELS 3 Zrotation Xrotation Yrotation");
+				}
+				out.println("End Site { OFFSET 0 5 0 }");
+				for (int i = 0; i < n; i ++)
+					out.println("}");
+				out.println("MOTION");
+				out.println("Frames: " + FRAMES);
+				out.println("Frame Time: 0.008333");
+				Random random = new Random(42);
+				StringBuilder line = new StringBuilder();
+				for (int f = 0; f < FRAMES; f ++)
+				{
+					line.setLength(0);
+					for (int c = 0; c < 3 * n + 3; c ++)
+						line.append(String.valueOf(Math.round((random.nextFloat() * 360 - 180) * 1e4f) / 1e4f)).append(' ');
+					out.println(line);
+				}
+				out.close();
+				open();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			pose = reader.createPose();
+		}
+
+		private void open() throws IOException
+		{
+			if (reader != null)	reader.close();
+			reader = new BiovisionReader(file);
+		}
+
+		@Override
+		protected void op()
+		{
+			try {
+				// Start over at the end of the capture
+				if (! reader.readFrame(pose))
+				{
+					open();
+					reader.readFrame(pose);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			sink += pose.getRelRot()[0];
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package bench;
+
+import java.util.List;
+
+import skeleton.*;
+import utils.MaterialFactory;
+
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.system.JmeSystem;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Rendering prep: refreshing the bone and joint sphere geometries after a joint moved.
+ * Runs headless, materials are loaded without a render context.
+ */
+public class RenderBenchmarks
+{
+	public static void register(List<Benchmark> benchmarks)
+	{
+		benchmarks.add(new Refresh("render.bones", true));
+		benchmarks.add(new Refresh("render.spheres", false));
+	}
+
+	/**
+	 * Rotate the root, then update every bone or every sphere
+	 */
+	private static class Refresh extends Benchmark
+	{
+		private final boolean bones;
+		private List<Joint> joints;
+		private final Quaternion swing = new Quaternion();
+		private float angle = 1e-3f;
+
+		Refresh(String name, boolean bones)
+		{
+			super(name, Rigs.SIZES_AND_SPIDER);
+			this.bones = bones;
+		}
+
+		@Override
+		protected void setup(String param)
+		{
+			MaterialFactory.setup(JmeSystem.newAssetManager(
+					Thread.currentThread().getContextClassLoader().getResource("com/jme3/asset/Desktop.cfg")));
+			joints = Rigs.joints(param);
+		}
+
+		@Override
+		protected void op()
+		{
+			angle = -angle;
+			joints.get(0).rotate(swing.fromAngleAxis(angle, Vector3f.UNIT_Z));
+			for (Joint joint : joints)
+				if (! bones)
+					sink += joint.getJointSphere().update().getLocalTranslation().x;
+				else if (! joint.isRoot())
+					sink += joint.getBone().update().getLocalTranslation().x;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import kinematics.Pose;
+import skeleton.*;
+
+import com.jme3.math.Vector3f;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * The skeletons benchmarked: serial chains of n joints and the spider,
+ * as a bare pose for the kinematics and as a Joint tree for rendering.
+ */
+public class Rigs
+{
+	// Chain lengths measured by default
+	public static final String[] SIZES = {"2", "10", "100", "1000"};
+	public static final String[] SIZES_AND_SPIDER = {"2", "10", "100", "1000", "spider"};
+
+	// The spider's legs, relative to its body segments
+	private static final float[][] LEGS = {
+		{-1, 1, 0}, {-2, 0, 0}, {-1.5f, -1, 0},
+		{1, 1, 0}, {2, 0, 0}, {1.5f, -1, 0}};
+
+	/**
+	 * Pose of a chain of n joints, unit bones along X with a slight zigzag
+	 * so the chain isn't singular. The end joint is the last id
+	 */
+	public static Pose chain(int n)
+	{
+		Pose pose = new Pose(n);
+		int prev = pose.add(-1, 0, 0, 0);
+		for (int i = 1; i < n; i ++)
+			prev = pose.add(prev, i, (i % 2) * 0.1f, 0);
+		return pose;
+	}
+
+	/**
+	 * Pose of the spider, the ids of its eight feet are written to 'feet'
+	 */
+	public static Pose spider(int[] feet)
+	{
+		Pose pose = new Pose(4 + 6 * 4 + 1);
+		int body = pose.add(-1, 0, 0, 0);
+		for (int i = 0; i < 4; i ++)
+		{
+			float z = -1 - i;
+			body = pose.add(body, 0, 0, z);
+			for (int side = 0; side < 2; side ++)
+			{
+				int leg = body;
+				for (int k = 0; k < 3; k ++)
+				{
+					float[] o = LEGS[3*side + k];
+					leg = pose.add(leg, o[0], o[1], z + o[2]);
+				}
+				feet[2*i + side] = leg;
+			}
+		}
+		return pose;
+	}
+
+	/**
+	 * Joint tree for a chain or the spider, needs MaterialFactory set up
+	 * @return all joints, root first
+	 */
+	public static List<Joint> joints(String param)
+	{
+		List<Joint> joints = new ArrayList<Joint>();
+		Joint root = new Joint("Root", null, Vector3f.ZERO, null);
+		joints.add(root);
+		if (param.equals("spider"))
+		{
+			Joint body = root;
+			for (int i = 0; i < 4; i ++)
+			{
+				Vector3f center = new Vector3f(0, 0, -1 - i);
+				body = new Joint("Body" + i, body, center, EllipsoidBone.class);
+				joints.add(body);
+				for (int side = 0; side < 2; side ++)
+				{
+					Joint leg = body;
+					for (int k = 0; k < 3; k ++)
+					{
+						float[] o = LEGS[3*side + k];
+						Class<? extends AbstractBone> boneClass = k == 2 ? ConeBone.class : CylinderBone.class;
+						leg = new Joint("Leg" + i + side + k, leg, center.add(o[0], o[1], o[2]), boneClass);
+						joints.add(leg);
+					}
+				}
+			}
+		}
+		else
+		{
+			int n = Integer.parseInt(param);
+			Joint prev = root;
+			for (int i = 1; i < n; i ++)
+			{
+				Class<? extends AbstractBone> boneClass = i == n - 1 ? ConeBone.class :
+								  i % 2 == 1 ? CylinderBone.class : EllipsoidBone.class;
+				prev = new Joint("J" + i, prev, new Vector3f(i, (i % 2) * 0.1f, 0), boneClass);
+				joints.add(prev);
+			}
+		}
+		return joints;
+	}
+}
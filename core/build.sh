@@ -0,0 +1,19 @@
+#!/bin/bash
+
+# Kinematics core: joint tree, forward and inverse kinematics.
+# Pure math, only needs EJML. No jME, no graphics stack.
+# Produces core/kinematics-core.jar, which the jME front end (../run.sh) builds against.
+
+cd "$(dirname "$0")"
+
+echo Renew core/bin/ folder to store compiled classes
+rm -rf bin/
+mkdir bin
+echo
+
+echo Compiling the kinematics core ...
+javac -d bin -cp "../lib/ejml-0.24.jar" src/kinematics/*.java || exit 1
+jar cf kinematics-core.jar -C bin .
+
+echo DONE
+echo
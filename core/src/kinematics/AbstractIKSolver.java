@@ -0,0 +1,202 @@
+package kinematics;
+
+import java.util.Arrays;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Iteration scheme that all IK solvers share.
+ * Iterate until the end joint is within tolerance of the target, the maximum
+ * iteration count is hit or the time budget runs out, whichever comes first.
+ * The chain (ancestor list) is collected once and reused until it changes.
+ */
+public abstract class AbstractIKSolver implements IKSolver
+{
+	// Stop iterating when the end joint is this close to the target
+	protected float tolerance = 1e-3f;
+	protected int maxIterations = 50;
+	// Per-frame time budget in nanoseconds
+	protected long timeBudget = 2000000L;
+	protected final IKStats stats = new IKStats();
+	
+	// The reachable target of the current solve
+	protected float tx, ty, tz;
+
+	// The chain we are currently bound to
+	protected Pose pose;
+	protected int end = -1;
+	private int poseSize = -1;
+	// Ancestor ids of the end joint. The last one must be root
+	protected int[] chain = new int[16];
+	protected int chainLen = 0;
+	
+	/**
+	 * One iteration towards the current target (tx, ty, tz)
+	 */
+	protected abstract void step();
+	
+	/**
+	 * Called after a new chain is collected, to size the workspace
+	 */
+	protected void onBind() {}
+
+	@Override
+	public IKStats solve(Pose pose, int end, float tx, float ty, float tz, float totalLen)
+	{
+		long start = System.nanoTime();
+		int iter = 0;
+		if (begin(pose, end, tx, ty, tz, totalLen))
+		{
+    		float residual = residual();
+    		while (residual > tolerance && iter < maxIterations
+    				&& System.nanoTime() - start < timeBudget)
+    		{
+    			step();
+    			iter ++;
+    			residual = residual();
+    		}
+		}
+		stats.set(iter, chainLen == 0 ? 0 : residual(), System.nanoTime() - start);
+		return stats;
+	}
+	
+	@Override
+	public void step(Pose pose, int end, float tx, float ty, float tz, float totalLen)
+	{
+		if (begin(pose, end, tx, ty, tz, totalLen))
+			step();
+	}
+	
+	/**
+	 * Bind to the chain and pull the target within reach
+	 * @return false if there is nothing to solve
+	 */
+	private boolean begin(Pose pose, int end, float tx, float ty, float tz, float totalLen)
+	{
+		bind(pose, end);
+		if (chainLen == 0)	return false;
+
+		float[] pos = pose.getWorldPos();
+		int r = 3 * pose.slot(chain[chainLen - 1]);
+		float dx = tx - pos[r], dy = ty - pos[r+1], dz = tz - pos[r+2];
+		float targetDist = (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+		if (targetDist > totalLen)
+		{
+			float scale = totalLen / targetDist;
+			tx = pos[r] + dx * scale;
+			ty = pos[r+1] + dy * scale;
+			tz = pos[r+2] + dz * scale;
+		}
+		this.tx = tx;
+		this.ty = ty;
+		this.tz = tz;
+		return true;
+	}
+	
+	/**
+	 * Distance from the end joint to the current target
+	 */
+	protected float residual()
+	{
+		float[] pos = pose.getWorldPos();
+		int s = 3 * pose.slot(end);
+		float dx = tx - pos[s], dy = ty - pos[s+1], dz = tz - pos[s+2];
+		return (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+
+	/**
+	 * Collect the ancestors of 'end' and size the workspace accordingly.
+	 * Nothing happens if we are already bound to the same chain.
+	 */
+	private void bind(Pose pose, int end)
+	{
+		if (pose == this.pose && end == this.end && pose.size() == poseSize)
+			return;
+		this.pose = pose;
+		this.end = end;
+		this.poseSize = pose.size();
+
+		chainLen = 0;
+		for (int s = pose.getParentSlot(pose.slot(end)); s >= 0; s = pose.getParentSlot(s))
+		{
+			if (chainLen == chain.length)
+				chain = Arrays.copyOf(chain, 2 * chainLen);
+			chain[chainLen ++] = pose.id(s);
+		}
+		onBind();
+	}
+	
+	/**
+	 * Force the chain to be collected again on the next solve
+	 */
+	protected void invalidate() {	this.pose = null;	}
+	
+	/**
+	 * Rotate joint 'id' so that the world direction d turns towards e.
+	 * @param w the joint's current world rotation (row-major, at offset o),
+	 * 		updated in place to the new world rotation
+	 * @return false if d or e is degenerate and nothing was rotated
+	 */
+	protected boolean rotateTowards(int id, float[] w, int o, 
+			float dx, float dy, float dz, float ex, float ey, float ez)
+	{
+		// World axis d x e, angle between d and e
+		float ux = dy * ez - dz * ey, uy = dz * ex - dx * ez, uz = dx * ey - dy * ex;
+		float sin = (float) Math.sqrt(ux*ux + uy*uy + uz*uz);
+		float cos = dx * ex + dy * ey + dz * ez;
+		float lenSq = (dx*dx + dy*dy + dz*dz) * (ex*ex + ey*ey + ez*ez);
+		if (lenSq < 1e-18f)	return false;
+		if (sin * sin < 1e-12f * lenSq)
+		{
+			if (cos > 0)	return true; // already aligned
+			// Exactly opposite: turn half a circle around any axis perpendicular to d
+			if (Math.abs(dx) < Math.abs(dy))
+				{	ux = 0;	uy = dz;	uz = -dy;	}
+			else
+				{	ux = -dz;	uy = 0;	uz = dx;	}
+			sin = (float) Math.sqrt(ux*ux + uy*uy + uz*uz);
+		}
+		float angle = (float) Math.atan2(sin, cos);
+		ux /= sin;	uy /= sin;	uz /= sin;
+		
+		// Same axis in the joint's own frame: W^T u
+		float lx = w[o] * ux + w[o+3] * uy + w[o+6] * uz;
+		float ly = w[o+1] * ux + w[o+4] * uy + w[o+7] * uz;
+		float lz = w[o+2] * ux + w[o+5] * uy + w[o+8] * uz;
+		pose.rotateAxis(id, lx, ly, lz, angle);
+		
+		// W' = R(u, angle) * W
+		float c = (float) Math.cos(angle), s = (float) Math.sin(angle), t = 1 - c;
+		float r00 = t*ux*ux + c, r01 = t*ux*uy - s*uz, r02 = t*ux*uz + s*uy;
+		float r10 = t*ux*uy + s*uz, r11 = t*uy*uy + c, r12 = t*uy*uz - s*ux;
+		float r20 = t*ux*uz - s*uy, r21 = t*uy*uz + s*ux, r22 = t*uz*uz + c;
+		for (int col = 0; col < 3; col ++)
+		{
+			float a = w[o+col], b = w[o+3+col], d = w[o+6+col];
+			w[o+col] = r00 * a + r01 * b + r02 * d;
+			w[o+3+col] = r10 * a + r11 * b + r12 * d;
+			w[o+6+col] = r20 * a + r21 * b + r22 * d;
+		}
+		return true;
+	}
+
+	/**
+	 * Stop when the end joint is this close to the target, default = 0.001
+	 */
+	@Override
+	public void setTolerance(float tolerance) {	this.tolerance = tolerance;	}
+	
+	/**
+	 * Maximum iterations per solve, default = 50
+	 */
+	@Override
+	public void setMaxIterations(int maxIterations) {	this.maxIterations = maxIterations;	}
+	
+	/**
+	 * Time budget per solve in nanoseconds, default = 2 ms
+	 */
+	@Override
+	public void setTimeBudget(long nanos) {	this.timeBudget = nanos;	}
+	
+	@Override
+	public IKStats getStats() {	return this.stats;	}
+}
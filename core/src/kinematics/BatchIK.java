@@ -0,0 +1,140 @@
+package kinematics;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Headless inverse kinematics for bulk work: solves one chain for many targets,
+ * e.g. planning reach poses offline. No jME application, input or camera needed.
+ *
+ * Every target is solved from the same starting pose, independently of the others.
+ * Targets are split into chunks across the cores of a fork-join pool,
+ * each chunk with its own copy of the pose and its own solver workspace.
+ */
+public class BatchIK
+{
+	private final IKSolver.Factory factory;
+	private final ForkJoinPool pool;
+	// Targets per chunk, each chunk builds one workspace
+	private int chunkSize = 256;
+
+	/**
+	 * @param factory creates one solver per chunk, solvers aren't thread-safe.
+	 * 	Lift the per-frame time budget there for results that don't depend on load
+	 * @param pool fork-join pool the chunks are solved on
+	 */
+	public BatchIK(IKSolver.Factory factory, ForkJoinPool pool)
+	{
+		this.factory = factory;
+		this.pool = pool;
+	}
+
+	/**
+	 * Solve on all available cores
+	 */
+	public BatchIK(IKSolver.Factory factory)
+	{
+		this(factory, new ForkJoinPool());
+	}
+
+	/**
+	 * Solve the chain ending at joint 'end' for every target
+	 * @param pose the skeleton and the starting pose, left untouched
+	 * @param end id of the end joint
+	 * @param targets 3 floats per target
+	 * @return the solved relative rotations: per target, 9 floats (row-major) per joint,
+	 * 	joints in id order
+	 */
+	public float[] solve(Pose pose, int end, float[] targets)
+	{
+		float[] rotations = new float[targets.length / 3 * 9 * pose.size()];
+		solve(pose, end, targets, rotations, null);
+		return rotations;
+	}
+
+	/**
+	 * Solve the chain ending at joint 'end' for every target, into preallocated arrays
+	 * @param rotations output: per target, 9 floats per joint in id order
+	 * @param residuals output: distance to the reachable target per target, or null
+	 */
+	public void solve(Pose pose, int end, float[] targets, float[] rotations, float[] residuals)
+	{
+		if (targets.length % 3 != 0)
+			throw new IllegalArgumentException("Targets need 3 floats each, got " + targets.length);
+		int n = targets.length / 3;
+		if (rotations.length < n * 9 * pose.size())
+			throw new IllegalArgumentException("Rotations need " + n * 9 * pose.size() + " floats");
+		if (residuals != null && residuals.length < n)
+			throw new IllegalArgumentException("Residuals need " + n + " floats");
+
+		// Workers only read the starting pose
+		pose.settle();
+		int root = pose.slot(end);
+		while (pose.getParentSlot(root) >= 0)
+			root = pose.getParentSlot(root);
+		float reach = pose.reach(pose.id(root), end);
+
+		pool.invoke(new Chunk(pose, end, reach, targets, rotations, residuals, 0, n));
+	}
+
+	/**
+	 * Targets per chunk, default = 256
+	 * Smaller chunks balance better, larger ones build fewer workspaces
+	 */
+	public void setChunkSize(int chunkSize) {	this.chunkSize = Math.max(chunkSize, 1);	}
+
+	/**
+	 * Solves targets [from, to), splitting until a chunk is small enough
+	 */
+	private class Chunk extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final Pose pose;
+		private final int end;
+		private final float reach;
+		private final float[] targets, rotations, residuals;
+		private final int from, to;
+
+		Chunk(Pose pose, int end, float reach, float[] targets, float[] rotations, float[] residuals,
+				int from, int to)
+		{
+			this.pose = pose;
+			this.end = end;
+			this.reach = reach;
+			this.targets = targets;
+			this.rotations = rotations;
+			this.residuals = residuals;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from > chunkSize)
+			{
+				int mid = (from + to) >>> 1;
+				invokeAll(new Chunk(pose, end, reach, targets, rotations, residuals, from, mid),
+						new Chunk(pose, end, reach, targets, rotations, residuals, mid, to));
+				return;
+			}
+
+			// Private workspace for this chunk
+			Pose local = new Pose(pose);
+			IKSolver solver = factory.create();
+			int size = local.size();
+			for (int t = from; t < to; t ++)
+			{
+				local.set(pose);
+				IKStats stats = solver.solve(local, end, targets[3*t], targets[3*t+1], targets[3*t+2], reach);
+				if (residuals != null)
+					residuals[t] = stats.getResidual();
+
+				float[] relRot = local.getRelRot();
+				for (int id = 0; id < size; id ++)
+					System.arraycopy(relRot, 9 * local.slot(id), rotations, 9 * (t * size + id), 9);
+			}
+		}
+	}
+}
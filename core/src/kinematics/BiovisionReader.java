@@ -0,0 +1,391 @@
+package kinematics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Reads motion capture in the Biovision hierarchy format (.bvh).
+ *
+ * The HIERARCHY section is parsed up front into joints: ids in file order,
+ * end sites included, so a pose or joint tree built in that order lines up.
+ * The MOTION section is streamed: each readFrame() parses just the next line of
+ * channel values straight from a small byte buffer into the pose, without
+ * allocating, so captures of any size play in constant memory.
+ */
+public class BiovisionReader implements Closeable
+{
+	// Channel kinds
+	private static final int X_POSITION = 0, Y_POSITION = 1, Z_POSITION = 2,
+			X_ROTATION = 3, Y_ROTATION = 4, Z_ROTATION = 5;
+	private static final String[] CHANNELS = {
+		"Xposition", "Yposition", "Zposition", "Xrotation", "Yrotation", "Zrotation"};
+	// Exact powers of ten a double holds
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i ++)
+			POW10[i] = POW10[i - 1] * 10;
+	}
+
+	private final InputStream in;
+	private final byte[] buf = new byte[1 << 16];
+	private int pos = 0, len = 0;
+
+	// Joints by id
+	private final ArrayList<String> names = new ArrayList<String>();
+	private int[] parent = new int[16];
+	private float[] offset = new float[3 * 16];
+	// Channels of every joint, in file order
+	private int[] channelStart = new int[17];
+	private int[] channels = new int[16];
+	private int numJoints = 0, numChannels = 0;
+
+	private float scale = 1;
+	private int frames;
+	private float frameTime;
+	private long framesRead = 0;
+	private long nanos = 0;
+
+	/**
+	 * Open a capture and parse its hierarchy
+	 */
+	public BiovisionReader(File path) throws IOException
+	{
+		in = new FileInputStream(path);
+		try {
+			// Skip a UTF-8 byte order mark, some exporters write one
+			read();
+			pos = len >= 3 && buf[0] == (byte) 0xEF && buf[1] == (byte) 0xBB && buf[2] == (byte) 0xBF ? 3 : 0;
+			expect("HIERARCHY");
+			expect("ROOT");
+			parseJoint(-1);
+			String token = nextToken();
+			if (token.equals("ROOT"))
+				throw new IOException("Only one ROOT per file is supported");
+			if (! token.equals("MOTION"))
+				throw new IOException("Expected MOTION, got " + token);
+			expect("Frames:");
+			frames = nextInt();
+			expect("Frame");
+			expect("Time:");
+			frameTime = nextFloat();
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * A joint: name, OFFSET, optional CHANNELS, then child joints and end sites
+	 */
+	private void parseJoint(int parentId) throws IOException
+	{
+		int id = addJoint(nextToken(), parentId);
+		expect("{");
+		parseOffset(id);
+		String token = nextToken();
+		if (token.equals("CHANNELS"))
+		{
+			int n = nextInt();
+			for (int k = 0; k < n; k ++)
+				addChannel(channelKind(nextToken()));
+			token = nextToken();
+		}
+		channelStart[id + 1] = numChannels;
+		while (! token.equals("}"))
+		{
+			if (token.equals("JOINT"))
+				parseJoint(id);
+			else if (token.equals("End"))
+			{
+				expect("Site");
+				int site = addJoint(names.get(id) + "_End", id);
+				expect("{");
+				parseOffset(site);
+				expect("}");
+			}
+			else
+				throw new IOException("Unexpected " + token + " in joint " + names.get(id));
+			token = nextToken();
+		}
+	}
+
+	private int addJoint(String name, int parentId)
+	{
+		int id = numJoints ++;
+		if (numJoints >= parent.length)
+		{
+			parent = Arrays.copyOf(parent, 2 * numJoints);
+			offset = Arrays.copyOf(offset, 6 * numJoints);
+			channelStart = Arrays.copyOf(channelStart, 2 * numJoints + 1);
+		}
+		names.add(name);
+		parent[id] = parentId;
+		channelStart[id + 1] = numChannels;
+		return id;
+	}
+
+	private void parseOffset(int id) throws IOException
+	{
+		expect("OFFSET");
+		for (int k = 0; k < 3; k ++)
+			offset[3*id + k] = nextFloat();
+	}
+
+	private void addChannel(int kind)
+	{
+		if (numChannels == channels.length)
+			channels = Arrays.copyOf(channels, 2 * numChannels);
+		channels[numChannels ++] = kind;
+	}
+
+	private static int channelKind(String name) throws IOException
+	{
+		for (int k = 0; k < CHANNELS.length; k ++)
+			if (CHANNELS[k].equalsIgnoreCase(name))	return k;
+		throw new IOException("Unknown channel " + name);
+	}
+
+	/**
+	 * Scale applied to offsets and positions, e.g. centimeters to world units. Default = 1
+	 */
+	public void setScale(float scale) {	this.scale = scale;	}
+
+	public float getScale() {	return this.scale;	}
+
+	public int getJointCount() {	return this.numJoints;	}
+
+	public String getName(int id) {	return names.get(id);	}
+
+	/**
+	 * Parent id, -1 for the root
+	 */
+	public int getParent(int id) {	return this.parent[id];	}
+
+	/**
+	 * Absolute coordinate of joint 'id' in the rest pose, scaled, written to store[o..o+3]
+	 */
+	public void getRestPosition(int id, float[] store, int o)
+	{
+		store[o] = store[o+1] = store[o+2] = 0;
+		for (int j = id; j >= 0; j = parent[j])
+			for (int k = 0; k < 3; k ++)
+				store[o+k] += offset[3*j + k] * scale;
+	}
+
+	/**
+	 * A bare pose of the rest pose, for use without a joint tree
+	 */
+	public Pose createPose()
+	{
+		Pose pose = new Pose(numJoints);
+		float[] p = new float[3];
+		for (int id = 0; id < numJoints; id ++)
+		{
+			getRestPosition(id, p, 0);
+			pose.add(parent[id], p[0], p[1], p[2]);
+		}
+		return pose;
+	}
+
+	/**
+	 * Frame count declared in the file
+	 */
+	public int getFrameCount() {	return this.frames;	}
+
+	/**
+	 * Seconds per frame
+	 */
+	public float getFrameTime() {	return this.frameTime;	}
+
+	/**
+	 * Parse the next frame into 'pose', built in this reader's joint order
+	 * @return false at the end of the capture, the pose is left as it was
+	 */
+	public boolean readFrame(Pose pose) throws IOException
+	{
+		if (framesRead >= frames)	return false;
+		if (pose.size() != numJoints)
+			throw new IllegalArgumentException("The capture has " + numJoints + " joints, the pose " + pose.size());
+		long start = System.nanoTime();
+		for (int id = 0; id < numJoints; id ++)
+		{
+			int from = channelStart[id], to = channelStart[id + 1];
+			if (from == to)	continue;
+			// Rotations compose in channel order, angles in degrees
+			float qx = 0, qy = 0, qz = 0, qw = 1;
+			float px = 0, py = 0, pz = 0;
+			for (int c = from; c < to; c ++)
+			{
+				float v = nextFloat();
+				int kind = channels[c];
+				if (kind < X_ROTATION)
+				{
+					if (kind == X_POSITION)			px = v;
+					else if (kind == Y_POSITION)	py = v;
+					else							pz = v;
+					continue;
+				}
+				float half = v * (float) (Math.PI / 360);
+				float s = (float) Math.sin(half), w = (float) Math.cos(half);
+				float ax = kind == X_ROTATION ? s : 0, ay = kind == Y_ROTATION ? s : 0, az = kind == Z_ROTATION ? s : 0;
+				// q = q * (axis, angle)
+				float nx = qw*ax + qx*w + qy*az - qz*ay;
+				float ny = qw*ay - qx*az + qy*w + qz*ax;
+				float nz = qw*az + qx*ay - qy*ax + qz*w;
+				qw = qw*w - qx*ax - qy*ay - qz*az;
+				qx = nx;	qy = ny;	qz = nz;
+			}
+			pose.setRotation(id, qx, qy, qz, qw);
+			// The root moves, translations of other joints aren't supported by Pose and are skipped
+			if (parent[id] < 0)
+				pose.setPosition(id, (offset[3*id] + px) * scale,
+						(offset[3*id+1] + py) * scale, (offset[3*id+2] + pz) * scale);
+		}
+		framesRead ++;
+		nanos += System.nanoTime() - start;
+		return true;
+	}
+
+	/**
+	 * Frames read so far
+	 */
+	public long getFramesRead() {	return this.framesRead;	}
+
+	/**
+	 * Parsing throughput so far: frames read per second spent in readFrame()
+	 */
+	public double getFramesPerSecond()
+	{
+		return nanos == 0 ? 0 : framesRead * 1e9 / nanos;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		in.close();
+	}
+
+	private int read() throws IOException
+	{
+		if (pos == len)
+		{
+			len = in.read(buf, 0, buf.length);
+			pos = 0;
+			if (len <= 0)
+			{
+				len = 0;
+				return -1;
+			}
+		}
+		return buf[pos ++] & 0xff;
+	}
+
+	private int skipSpace() throws IOException
+	{
+		int c = read();
+		while (c == ' ' || c == '\t' || c == '\n' || c == '\r')
+			c = read();
+		return c;
+	}
+
+	/**
+	 * The next run of non-blank bytes, UTF-8 so joint names may have any characters
+	 */
+	private String nextToken() throws IOException
+	{
+		int c = skipSpace();
+		if (c < 0)
+			throw new IOException("Unexpected end of file");
+		ByteArrayOutputStream token = new ByteArrayOutputStream();
+		while (c > ' ')
+		{
+			token.write(c);
+			c = read();
+		}
+		return token.toString("UTF-8");
+	}
+
+	private void expect(String token) throws IOException
+	{
+		String got = nextToken();
+		if (! got.equals(token))
+			throw new IOException("Expected " + token + ", got " + got);
+	}
+
+	/**
+	 * Parse a count: digits only, exact up to Integer.MAX_VALUE
+	 */
+	private int nextInt() throws IOException
+	{
+		int c = skipSpace();
+		if (c < 0)
+			throw new IOException("Unexpected end of file");
+		long v = 0;
+		boolean any = false;
+		for (; c >= '0' && c <= '9'; c = read(), any = true)
+		{
+			v = 10 * v + (c - '0');
+			if (v > Integer.MAX_VALUE)
+				throw new IOException("Count out of range");
+		}
+		if (! any || c > ' ')
+			throw new IOException("Malformed count");
+		return (int) v;
+	}
+
+	/**
+	 * Parse a decimal number without going through a String
+	 */
+	private float nextFloat() throws IOException
+	{
+		int c = skipSpace();
+		if (c < 0)
+			throw new IOException("Unexpected end of file");
+		boolean negative = c == '-';
+		if (c == '-' || c == '+')	c = read();
+		long mantissa = 0;
+		int exp = 0, digits = 0;
+		boolean any = false;
+		for (; c >= '0' && c <= '9'; c = read(), any = true)
+			if (digits < 18)
+			{
+				mantissa = 10 * mantissa + (c - '0');
+				if (mantissa > 0)	digits ++;
+			}
+			else	exp ++;
+		if (c == '.')
+			for (c = read(); c >= '0' && c <= '9'; c = read(), any = true)
+				if (digits < 18)
+				{
+					mantissa = 10 * mantissa + (c - '0');
+					if (mantissa > 0)	digits ++;
+					exp --;
+				}
+		if (c == 'e' || c == 'E')
+		{
+			c = read();
+			boolean negExp = c == '-';
+			if (c == '-' || c == '+')	c = read();
+			int e = 0;
+			for (; c >= '0' && c <= '9'; c = read())
+				e = 10 * e + (c - '0');
+			exp += negExp ? -e : e;
+		}
+		if (! any || c > ' ')
+			throw new IOException("Malformed number in frame " + framesRead);
+		double v = mantissa;
+		if (exp > 0)
+			v *= exp < POW10.length ? POW10[exp] : Math.pow(10, exp);
+		else if (exp < 0)
+			v /= -exp < POW10.length ? POW10[-exp] : Math.pow(10, -exp);
+		return (float) (negative ? -v : v);
+	}
+}
@@ -0,0 +1,46 @@
+package kinematics;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Inverse Kinematics: Cyclic Coordinate Descent.
+ * Sweeps the chain from the end joint's parent up to the root, rotating one joint
+ * at a time so that the end joint swings towards the target. Closed-form
+ * quaternion math only, no matrix algebra: O(n) per sweep.
+ * The workspace is allocated once per chain, a solve doesn't allocate anything.
+ */
+public class CCDSolver extends AbstractIKSolver
+{
+	// World rotation of the joint being rotated
+	private final float[] rot = new float[9];
+
+	@Override
+	protected void step()
+	{
+		float[] pos = pose.getWorldPos();
+		float[] worldRot = pose.getWorldRot();
+		int e = 3 * pose.slot(end);
+		float ex = pos[e], ey = pos[e+1], ez = pos[e+2];
+
+		// Rotating a joint only moves its descendants, so the cached transforms
+		// of the joints still to come are valid. Only the end joint is tracked.
+		for (int i = 0; i < chainLen; i ++)
+		{
+			int slot = pose.slot(chain[i]);
+			float jx = pos[3*slot], jy = pos[3*slot+1], jz = pos[3*slot+2];
+			// From the joint to the end, and from the joint to the target
+			float dx = ex - jx, dy = ey - jy, dz = ez - jz;
+			float gx = tx - jx, gy = ty - jy, gz = tz - jz;
+
+			System.arraycopy(worldRot, 9 * slot, rot, 0, 9);
+			if (! rotateTowards(chain[i], rot, 0, dx, dy, dz, gx, gy, gz))
+				continue;
+
+			// Swing the end joint with it: it now lies on the ray towards the target
+			float dLen = (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+			float scale = dLen / (float) Math.sqrt(gx*gx + gy*gy + gz*gz);
+			ex = jx + gx * scale;
+			ey = jy + gy * scale;
+			ez = jz + gz * scale;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package kinematics;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Inverse Kinematics: FABRIK (forward and backward reaching).
+ * Works directly on the joint positions of the chain, no matrix algebra:
+ * O(n) per iteration, so chains of hundreds of joints solve at interactive rates.
+ * The workspace is allocated once per chain, a solve doesn't allocate anything.
+ */
+public class FABRIKSolver extends AbstractIKSolver
+{
+	// Positions of the chain from root (0) to the end joint (chainLen), 3 floats each
+	private float[] points = new float[0];
+	// Length of the bone from point k to point k+1
+	private float[] lengths = new float[0];
+	// World rotation of the joint being aligned, and of its parent
+	private final float[] rot = new float[9];
+	private final float[] parentRot = new float[9];
+
+	@Override
+	protected void onBind()
+	{
+		if (lengths.length < chainLen)
+		{
+			points = new float[3 * (chainLen + 1)];
+			lengths = new float[chainLen];
+		}
+		// Bones are rigid: the length is the child's offset from its parent
+		float[] trans = pose.getRelTrans();
+		for (int k = 0; k < chainLen; k ++)
+		{
+			int c = 3 * pose.slot(joint(k + 1));
+			lengths[k] = (float) Math.sqrt(trans[c]*trans[c] + trans[c+1]*trans[c+1] + trans[c+2]*trans[c+2]);
+		}
+	}
+
+	/**
+	 * Id of the k-th joint counting from the root, k = chainLen is the end joint
+	 */
+	private int joint(int k) {	return k == chainLen ? end : chain[chainLen - 1 - k];	}
+
+	@Override
+	protected void step()
+	{
+		int n = chainLen;
+		float[] pos = pose.getWorldPos();
+		for (int k = 0; k <= n; k ++)
+			System.arraycopy(pos, 3 * pose.slot(joint(k)), points, 3*k, 3);
+		float bx = points[0], by = points[1], bz = points[2];
+
+		// Backward: pin the end joint to the target and walk towards the root
+		points[3*n] = tx;
+		points[3*n+1] = ty;
+		points[3*n+2] = tz;
+		for (int k = n - 1; k >= 0; k --)
+			pull(k, k + 1, lengths[k]);
+
+		// Forward: pin the root back to its base and walk towards the end
+		points[0] = bx;
+		points[1] = by;
+		points[2] = bz;
+		for (int k = 0; k < n; k ++)
+			pull(k + 1, k, lengths[k]);
+
+		applyPoints();
+	}
+
+	/**
+	 * Move point 'moved' onto the line towards it from point 'fixed', at distance len
+	 */
+	private void pull(int moved, int fixed, float len)
+	{
+		int m = 3 * moved, f = 3 * fixed;
+		float dx = points[m] - points[f], dy = points[m+1] - points[f+1], dz = points[m+2] - points[f+2];
+		float d = (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+		if (d < 1e-9f)	return;
+		float scale = len / d;
+		points[m] = points[f] + dx * scale;
+		points[m+1] = points[f+1] + dy * scale;
+		points[m+2] = points[f+2] + dz * scale;
+	}
+
+	/**
+	 * Turn the new positions back into joint rotations.
+	 * From the root down, each joint is rotated so that its bone points to the
+	 * next solved position. The world rotation is carried along the chain,
+	 * so this is a single O(n) pass without refreshing the pose in between.
+	 */
+	private void applyPoints()
+	{
+		int n = chainLen;
+		float[] relRot = pose.getRelRot();
+		float[] trans = pose.getRelTrans();
+		float[] worldRot = pose.getWorldRot();
+		float[] pos = pose.getWorldPos();
+
+		int root = pose.slot(joint(0));
+		System.arraycopy(worldRot, 9 * root, rot, 0, 9);
+		// Current position of the joint being aligned
+		float px = pos[3*root], py = pos[3*root+1], pz = pos[3*root+2];
+
+		for (int k = 0; k < n; k ++)
+		{
+			int slot = pose.slot(joint(k));
+			if (k > 0)
+				// W = parentW * R, the parent was just rotated
+				mult(parentRot, relRot, 9 * slot, rot);
+
+			// Where the bone points now, and where it should point
+			int c = 3 * pose.slot(joint(k + 1));
+			float ox = trans[c], oy = trans[c+1], oz = trans[c+2];
+			float dx = rot[0] * ox + rot[1] * oy + rot[2] * oz;
+			float dy = rot[3] * ox + rot[4] * oy + rot[5] * oz;
+			float dz = rot[6] * ox + rot[7] * oy + rot[8] * oz;
+			float ex = points[3*k+3] - px, ey = points[3*k+4] - py, ez = points[3*k+5] - pz;
+			rotateTowards(joint(k), rot, 0, dx, dy, dz, ex, ey, ez);
+
+			// Position of the next joint under the new rotation
+			px += rot[0] * ox + rot[1] * oy + rot[2] * oz;
+			py += rot[3] * ox + rot[4] * oy + rot[5] * oz;
+			pz += rot[6] * ox + rot[7] * oy + rot[8] * oz;
+			System.arraycopy(rot, 0, parentRot, 0, 9);
+		}
+	}
+
+	/**
+	 * out = a * b[o..o+9], all row-major 3x3
+	 */
+	private static void mult(float[] a, float[] b, int o, float[] out)
+	{
+		for (int row = 0; row < 9; row += 3)
+		{
+			float x = a[row], y = a[row+1], z = a[row+2];
+			out[row] = x * b[o] + y * b[o+3] + z * b[o+6];
+			out[row+1] = x * b[o+1] + y * b[o+4] + z * b[o+7];
+			out[row+2] = x * b[o+2] + y * b[o+5] + z * b[o+8];
+		}
+	}
+}
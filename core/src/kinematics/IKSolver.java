@@ -0,0 +1,48 @@
+package kinematics;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Inverse kinematics solver that Skeleton delegates to
+ */
+public interface IKSolver
+{
+	/**
+	 * Drag the 'end' joint towards (tx, ty, tz) by rotating its ancestors.
+	 * Targets farther than totalLen from the root are pulled back within reach.
+	 * @return statistics of this solve, reused by the next one
+	 */
+	public IKStats solve(Pose pose, int end, float tx, float ty, float tz, float totalLen);
+	
+	/**
+	 * A single iteration towards (tx, ty, tz)
+	 */
+	public void step(Pose pose, int end, float tx, float ty, float tz, float totalLen);
+	
+	/**
+	 * Statistics of the last solve
+	 */
+	public IKStats getStats();
+	
+	/**
+	 * Stop when the end joint is this close to the target
+	 */
+	public void setTolerance(float tolerance);
+	
+	/**
+	 * Maximum iterations per solve
+	 */
+	public void setMaxIterations(int maxIterations);
+	
+	/**
+	 * Time budget per solve in nanoseconds
+	 */
+	public void setTimeBudget(long nanos);
+	
+	/**
+	 * Creates solvers, one per chain or per thread, since solvers own their workspace
+	 */
+	public static interface Factory
+	{
+		public IKSolver create();
+	}
+}
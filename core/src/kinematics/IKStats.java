@@ -0,0 +1,42 @@
+package kinematics;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Statistics of the last inverse kinematics solve
+ * Owned and reused by the solver, copy the values if you need to keep them.
+ */
+public class IKStats
+{
+	private int iterations;
+	private float residual;
+	private long nanos;
+
+	void set(int iterations, float residual, long nanos)
+	{
+		this.iterations = iterations;
+		this.residual = residual;
+		this.nanos = nanos;
+	}
+
+	/**
+	 * How many solver iterations were run
+	 */
+	public int getIterations() {	return this.iterations;	}
+
+	/**
+	 * Distance between the end joint and the (reachable) target after the solve
+	 */
+	public float getResidual() {	return this.residual;	}
+
+	/**
+	 * Wall time spent in the solve, in nanoseconds
+	 */
+	public long getNanos() {	return this.nanos;	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%d iterations, residual %.5f, %.3f ms",
+				iterations, residual, nanos / 1e6);
+	}
+}
@@ -0,0 +1,135 @@
+package kinematics;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.factory.LinearSolver;
+import org.ejml.factory.LinearSolverFactory;
+import org.ejml.ops.CommonOps;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Inverse Kinematics: damped least squares on the Jacobian of a chain.
+ * Spherical joints contribute 3 columns each (rotations around their local X, Y and Z),
+ * planar 1 DoF joints only rotate around the world Z axis, which is cheaper.
+ * Holds its own workspace: the ancestor list, the Jacobian and all scratch
+ * matrices are allocated once per chain and only resized when the chain changes,
+ * so a solve in steady state doesn't allocate anything.
+ */
+public class JacobianSolver extends AbstractIKSolver
+{
+	// Damping of the least squares, prevents shaking near singularities
+	private double damping = 0.05;
+	
+	public static enum DoF {One, Three};
+	private DoF dof = DoF.Three;
+	
+	// Longest error vector fed to a single step
+	private float maxStep = 1f;
+	
+	// Scratch buffers
+	private final DenseMatrix64F jacobian = new DenseMatrix64F(3, 1);
+	private final DenseMatrix64F jjt = new DenseMatrix64F(3, 3);
+	private final DenseMatrix64F error = new DenseMatrix64F(3, 1);
+	private final DenseMatrix64F y = new DenseMatrix64F(3, 1);
+	private final DenseMatrix64F deltaTheta = new DenseMatrix64F(1, 1);
+	private final LinearSolver<DenseMatrix64F> solver = LinearSolverFactory.symmPosDef(3);
+
+	/**
+	 * One damped least squares iteration towards the current target
+	 */
+	@Override
+	protected void step()
+	{
+		float[] pos = pose.getWorldPos();
+		int s = 3 * pose.slot(end);
+		float sx = pos[s], sy = pos[s+1], sz = pos[s+2];
+
+		if (dof == DoF.One)
+    		// Each column: UNIT_Z x (s - ancestor)
+    		for (int i = 0; i < chainLen; i ++)
+    		{
+    			int a = 3 * pose.slot(chain[i]);
+    			jacobian.unsafe_set(0, i, -(sy - pos[a+1]));
+    			jacobian.unsafe_set(1, i, sx - pos[a]);
+    			jacobian.unsafe_set(2, i, 0);
+    		}
+		else
+		{
+			// Each column: axis x (s - ancestor), where the axes are
+			// the ancestor's local X, Y and Z in world space (columns of its world rotation)
+			float[] rot = pose.getWorldRot();
+			for (int i = 0; i < chainLen; i ++)
+			{
+				int slot = pose.slot(chain[i]);
+				int a = 3 * slot, m = 9 * slot;
+				float rx = sx - pos[a], ry = sy - pos[a+1], rz = sz - pos[a+2];
+				for (int k = 0; k < 3; k ++)
+				{
+					float ax = rot[m+k], ay = rot[m+3+k], az = rot[m+6+k];
+					int col = 3*i + k;
+					jacobian.unsafe_set(0, col, ay * rz - az * ry);
+					jacobian.unsafe_set(1, col, az * rx - ax * rz);
+					jacobian.unsafe_set(2, col, ax * ry - ay * rx);
+				}
+			}
+		}
+		// Clamp the error so the linearization stays valid on long chains
+		float ex = tx - sx, ey = ty - sy, ez = tz - sz;
+		float len = (float) Math.sqrt(ex*ex + ey*ey + ez*ez);
+		float scale = len > maxStep ? maxStep / len : 1f;
+		error.data[0] = ex * scale;
+		error.data[1] = ey * scale;
+		error.data[2] = ez * scale;
+
+		// (J^T J + lambda I)^-1 J^T e == J^T (J J^T + lambda I)^-1 e
+		// The latter only needs a 3x3 solve, whatever the chain length
+		CommonOps.multTransB(jacobian, jacobian, jjt);
+		for (int k = 0; k < 3; k ++)
+			jjt.data[4*k] += damping;
+		if (! solver.setA(jjt))	return;
+		solver.solve(error, y);
+		CommonOps.multTransA(jacobian, y, deltaTheta);
+
+		// The whole chain is refreshed once, on the next query
+		if (dof == DoF.One)
+    		for (int i = 0; i < chainLen; i ++)
+    			pose.rotateAxis(chain[i], 0, 0, 1, (float) deltaTheta.data[i]);
+		else
+			for (int i = 0; i < chainLen; i ++)
+			{
+				double[] d = deltaTheta.data;
+				pose.rotateAxis(chain[i], 1, 0, 0, (float) d[3*i]);
+				pose.rotateAxis(chain[i], 0, 1, 0, (float) d[3*i+1]);
+				pose.rotateAxis(chain[i], 0, 0, 1, (float) d[3*i+2]);
+			}
+	}
+
+	@Override
+	protected void onBind()
+	{
+		int cols = Math.max(chainLen * (dof == DoF.One ? 1 : 3), 1);
+		jacobian.reshape(3, cols, false);
+		deltaTheta.reshape(cols, 1, false);
+	}
+
+	/**
+	 * Damping factor of the least squares, default = 0.05
+	 */
+	public void setDamping(double damping) {	this.damping = damping;	}
+	
+	/**
+	 * 3 DoF spherical joints (default) or the cheaper planar 1 DoF
+	 */
+	public void setDoF(DoF dof)
+	{
+		this.dof = dof;
+		invalidate(); // the Jacobian changes width
+	}
+	
+	public DoF getDoF() {	return this.dof;	}
+	
+	/**
+	 * Longest distance the end joint is asked to travel in one step, default = 1
+	 * Smaller values converge more steadily on long or fully stretched chains
+	 */
+	public void setMaxStep(float maxStep) {	this.maxStep = maxStep;	}
+}
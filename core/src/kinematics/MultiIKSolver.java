@@ -0,0 +1,381 @@
+package kinematics;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.factory.LinearSolver;
+import org.ejml.factory.LinearSolverFactory;
+import org.ejml.ops.CommonOps;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Inverse Kinematics with many end joints, each with its own target,
+ * for branching skeletons like the spider.
+ *
+ * A joint that has two or more end joints below it is shared: it belongs to
+ * the body. Shared joints are moved by one damped least squares step on the
+ * stacked errors of all end joints, so the body finds a compromise.
+ * Below the body, every end joint has its own leg: the chain of joints that only
+ * move this end joint. Legs don't overlap, so they are solved independently,
+ * each by its own IKSolver on a private copy of the leg: one after the other,
+ * or in parallel on a fork-join pool when one is given. Short legs like the
+ * spider's solve faster serially, parallel pays off for long legs.
+ */
+public class MultiIKSolver
+{
+	private final IKSolver.Factory factory;
+	// null = serial only
+	private final ForkJoinPool pool;
+	private boolean parallel;
+
+	// Damping of the body's least squares
+	private double damping = 0.05;
+	// Longest error vector per end joint fed to a body step
+	private float maxStep = 1f;
+	// Stop when every end joint is this close to its target
+	private float tolerance = 1e-3f;
+	private int maxIterations = 10;
+	private final IKStats stats = new IKStats();
+
+	private Pose pose;
+	private int poseSize = -1;
+	private Leg[] legs = new Leg[0];
+	// Shared body joints (ids)
+	private int[] body = new int[0];
+
+	// Body workspace
+	private final DenseMatrix64F jacobian = new DenseMatrix64F(3, 1);
+	private final DenseMatrix64F jjt = new DenseMatrix64F(3, 3);
+	private final DenseMatrix64F error = new DenseMatrix64F(3, 1);
+	private final DenseMatrix64F y = new DenseMatrix64F(3, 1);
+	private final DenseMatrix64F deltaTheta = new DenseMatrix64F(1, 1);
+	private LinearSolver<DenseMatrix64F> solver;
+
+	// Solves all legs, reused every frame
+	private final RecursiveAction legsTask = new RecursiveAction()
+	{
+		@Override
+		protected void compute()
+		{
+			for (Leg leg : legs)	leg.reinitialize();
+			invokeAll(legs);
+		}
+	};
+
+	/**
+	 * Legs in parallel
+	 * @param factory creates one solver per leg
+	 * @param pool fork-join pool the legs are solved on, owned by the caller
+	 */
+	public MultiIKSolver(IKSolver.Factory factory, ForkJoinPool pool)
+	{
+		this.factory = factory;
+		this.pool = pool;
+		this.parallel = pool != null;
+	}
+
+	/**
+	 * Legs one after the other
+	 */
+	public MultiIKSolver(IKSolver.Factory factory)
+	{
+		this(factory, null);
+	}
+
+	/**
+	 * Set the end joints (ids in 'pose'). Their targets start at their current coordinates
+	 */
+	public void setEndJoints(Pose pose, int ... ends)
+	{
+		this.pose = pose;
+		this.poseSize = pose.size();
+		// Settle the layout now: slots are stable until the skeleton changes
+		pose.getSubtreeEnd(0);
+
+		// How many end joints below each joint
+		int[] count = new int[pose.size()];
+		for (int end : ends)
+			for (int s = pose.getParentSlot(pose.slot(end)); s >= 0; s = pose.getParentSlot(s))
+				count[s] ++;
+
+		// Legs: from the end joint up to the highest joint that moves nothing else
+		Leg[] newLegs = new Leg[ends.length];
+		for (int k = 0; k < ends.length; k ++)
+		{
+			int base = pose.slot(ends[k]);
+			while (pose.getParentSlot(base) >= 0 && count[pose.getParentSlot(base)] == 1)
+				base = pose.getParentSlot(base);
+			newLegs[k] = new Leg(pose.id(base), ends[k]);
+		}
+		this.legs = newLegs;
+
+		ArrayList<Integer> shared = new ArrayList<Integer>();
+		for (int s = 0; s < count.length; s ++)
+			if (count[s] > 1)	shared.add(pose.id(s));
+		body = new int[shared.size()];
+		for (int i = 0; i < body.length; i ++)
+			body[i] = shared.get(i);
+
+		int rows = 3 * legs.length, cols = Math.max(3 * body.length, 1);
+		jacobian.reshape(rows, cols, false);
+		jjt.reshape(rows, rows, false);
+		error.reshape(rows, 1, false);
+		y.reshape(rows, 1, false);
+		deltaTheta.reshape(cols, 1, false);
+		solver = LinearSolverFactory.symmPosDef(rows);
+	}
+
+	/**
+	 * Set the target of the k-th end joint
+	 */
+	public void setTarget(int k, float x, float y, float z)
+	{
+		legs[k].tx = x;
+		legs[k].ty = y;
+		legs[k].tz = z;
+	}
+
+	/**
+	 * How many end joints
+	 */
+	public int getNumEndJoints() {	return legs.length;	}
+
+	/**
+	 * Id of the k-th end joint
+	 */
+	public int getEndJoint(int k) {	return legs[k].end;	}
+
+	/**
+	 * Move all end joints towards their targets.
+	 * Alternates a body step with solving all legs until every end joint
+	 * is within tolerance or the maximum iteration count is hit.
+	 */
+	public IKStats solve()
+	{
+		long start = System.nanoTime();
+		if (pose == null || pose.size() != poseSize)
+			throw new IllegalStateException("End joints must be set again after the skeleton changed");
+		int iter = 0;
+		float residual = residual();
+		while (residual > tolerance && iter < maxIterations)
+		{
+			if (body.length > 0)
+				stepBody();
+
+			for (Leg leg : legs)	leg.load();
+			if (parallel && legs.length > 1)
+			{
+				legsTask.reinitialize();
+				pool.invoke(legsTask);
+			}
+			else
+				for (Leg leg : legs)	leg.solve();
+			for (Leg leg : legs)	leg.store();
+
+			iter ++;
+			residual = residual();
+		}
+		stats.set(iter, residual, System.nanoTime() - start);
+		return stats;
+	}
+
+	/**
+	 * The largest distance from an end joint to its target
+	 */
+	private float residual()
+	{
+		float[] pos = pose.getWorldPos();
+		float max = 0;
+		for (Leg leg : legs)
+		{
+			int s = 3 * pose.slot(leg.end);
+			float dx = leg.tx - pos[s], dy = leg.ty - pos[s+1], dz = leg.tz - pos[s+2];
+			max = Math.max(max, dx*dx + dy*dy + dz*dz);
+		}
+		return (float) Math.sqrt(max);
+	}
+
+	/**
+	 * One damped least squares step of the shared joints on all errors at once.
+	 * Rows: 3 per end joint. Columns: local X, Y and Z of each shared joint,
+	 * zero where the end joint doesn't descend from it.
+	 */
+	private void stepBody()
+	{
+		float[] pos = pose.getWorldPos();
+		float[] rot = pose.getWorldRot();
+		for (int m = 0; m < legs.length; m ++)
+		{
+			int e = pose.slot(legs[m].end);
+			float ex = pos[3*e], ey = pos[3*e+1], ez = pos[3*e+2];
+			for (int i = 0; i < body.length; i ++)
+			{
+				int a = pose.slot(body[i]);
+				boolean below = e > a && e < pose.getSubtreeEnd(a);
+				float rx = ex - pos[3*a], ry = ey - pos[3*a+1], rz = ez - pos[3*a+2];
+				for (int k = 0; k < 3; k ++)
+				{
+					float ax = rot[9*a+k], ay = rot[9*a+3+k], az = rot[9*a+6+k];
+					int col = 3*i + k;
+					jacobian.unsafe_set(3*m, col, below ? ay * rz - az * ry : 0);
+					jacobian.unsafe_set(3*m+1, col, below ? az * rx - ax * rz : 0);
+					jacobian.unsafe_set(3*m+2, col, below ? ax * ry - ay * rx : 0);
+				}
+			}
+			float dx = legs[m].tx - ex, dy = legs[m].ty - ey, dz = legs[m].tz - ez;
+			float len = (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+			float scale = len > maxStep ? maxStep / len : 1f;
+			error.data[3*m] = dx * scale;
+			error.data[3*m+1] = dy * scale;
+			error.data[3*m+2] = dz * scale;
+		}
+
+		// J^T (J J^T + lambda I)^-1 e
+		CommonOps.multTransB(jacobian, jacobian, jjt);
+		for (int k = 0; k < jjt.numRows; k ++)
+			jjt.unsafe_set(k, k, jjt.unsafe_get(k, k) + damping);
+		if (! solver.setA(jjt))	return;
+		solver.solve(error, y);
+		CommonOps.multTransA(jacobian, y, deltaTheta);
+
+		double[] d = deltaTheta.data;
+		for (int i = 0; i < body.length; i ++)
+		{
+			pose.rotateAxis(body[i], 1, 0, 0, (float) d[3*i]);
+			pose.rotateAxis(body[i], 0, 1, 0, (float) d[3*i+1]);
+			pose.rotateAxis(body[i], 0, 0, 1, (float) d[3*i+2]);
+		}
+	}
+
+	/**
+	 * Solve legs in parallel or one after the other. Default = parallel if there's a pool
+	 */
+	public void setParallel(boolean parallel)
+	{
+		if (parallel && pool == null)
+			throw new IllegalStateException("No fork-join pool to solve the legs on");
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Damping factor of the body's least squares, default = 0.05
+	 */
+	public void setDamping(double damping) {	this.damping = damping;	}
+
+	/**
+	 * Longest distance an end joint pulls the body in one step, default = 1
+	 */
+	public void setMaxStep(float maxStep) {	this.maxStep = maxStep;	}
+
+	/**
+	 * Stop when every end joint is this close to its target, default = 0.001
+	 */
+	public void setTolerance(float tolerance) {	this.tolerance = tolerance;	}
+
+	/**
+	 * Maximum body + legs rounds per solve, default = 10
+	 */
+	public void setMaxIterations(int maxIterations) {	this.maxIterations = maxIterations;	}
+
+	/**
+	 * Statistics of the last solve. Residual is the worst end joint's
+	 */
+	public IKStats getStats() {	return this.stats;	}
+
+	/**
+	 * The chain of one end joint below the body.
+	 * Solved on a private copy of the chain, rooted at the leg's base with
+	 * the base's world transform, so legs never touch shared state in parallel.
+	 */
+	private class Leg extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		final int base, end;
+		float tx, ty, tz;
+		// Ids of the leg joints in the shared pose, from base to end
+		final int[] joints;
+		final Pose local;
+		final IKSolver solver = factory.create();
+		final float reach;
+		private final float[] rot = new float[9];
+
+		Leg(int base, int end)
+		{
+			this.base = base;
+			this.end = end;
+
+			int n = 1;
+			for (int s = pose.slot(end); s != pose.slot(base); s = pose.getParentSlot(s))
+				n ++;
+			joints = new int[n];
+			for (int k = n - 1, s = pose.slot(end); k >= 0; k --, s = pose.getParentSlot(s))
+				joints[k] = pose.id(s);
+
+			local = new Pose(n);
+			float[] trans = pose.getRelTrans();
+			local.add(-1, 0, 0, 0);
+			for (int k = 1; k < n; k ++)
+			{
+				int s = 3 * pose.slot(joints[k]);
+				local.addRelative(k - 1, trans[s], trans[s+1], trans[s+2]);
+			}
+			reach = pose.reach(base, end);
+
+			float[] pos = pose.getWorldPos();
+			int e = 3 * pose.slot(end);
+			tx = pos[e];
+			ty = pos[e+1];
+			tz = pos[e+2];
+		}
+
+		/**
+		 * Copy the shared pose into the private one. Serial
+		 */
+		void load()
+		{
+			float[] pos = pose.getWorldPos();
+			float[] worldRot = pose.getWorldRot();
+			float[] relRot = pose.getRelRot();
+			int b = pose.slot(base);
+			local.setPosition(0, pos[3*b], pos[3*b+1], pos[3*b+2]);
+			local.setRotation(0, worldRot, 9*b);
+			for (int k = 1; k < joints.length; k ++)
+				local.setRotation(k, relRot, 9 * pose.slot(joints[k]));
+		}
+
+		void solve()
+		{
+			if (joints.length > 1)
+				solver.solve(local, joints.length - 1, tx, ty, tz, reach);
+		}
+
+		@Override
+		protected void compute() {	solve();	}
+
+		/**
+		 * Copy the solved rotations back into the shared pose. Serial
+		 */
+		void store()
+		{
+			float[] localRot = local.getRelRot();
+			// The base's new relative rotation: parentW^T * newW
+			int b = pose.slot(base);
+			int p = pose.getParentSlot(b);
+			if (p < 0)
+				System.arraycopy(localRot, 9 * local.slot(0), rot, 0, 9);
+			else
+			{
+				float[] w = pose.getWorldRot();
+				int q = 9*p, o = 9 * local.slot(0);
+				for (int r = 0; r < 3; r ++)
+					for (int c = 0; c < 3; c ++)
+						rot[3*r+c] = w[q+r] * localRot[o+c] + w[q+3+r] * localRot[o+3+c] + w[q+6+r] * localRot[o+6+c];
+			}
+			pose.setRotation(base, rot, 0);
+			for (int k = 1; k < joints.length; k ++)
+				pose.setRotation(joints[k], localRot, 9 * local.slot(k));
+		}
+	}
+}
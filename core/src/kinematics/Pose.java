@@ -0,0 +1,611 @@
+package kinematics;
+
+import java.util.Arrays;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Flat structure-of-arrays storage of a whole joint tree.
+ * Joint is only a thin view (an id) into this store.
+ *
+ * Every joint has a stable id, the order in which it was added,
+ * and a slot in the arrays. Slots are kept in depth-first preorder,
+ * so a parent always precedes its children and the subtree of slot s
+ * is the contiguous range [s, subtreeEnd[s]).
+ *
+ * Forward kinematics is incremental: rotate() only marks the rotated
+ * subtree dirty, and the cached world transforms are refreshed lazily,
+ * each dirty joint once from its parent's cached transform.
+ */
+public class Pose
+{
+	// How many joints are stored
+	private int size = 0;
+	// Slot of the parent joint, -1 for the root
+	private int[] parent;
+	// Relative translation w.r.t. parent, expressed in the parent's frame. 3 floats per joint
+	private float[] relTrans;
+	// Relative rotation w.r.t. parent. 9 floats per joint, row-major
+	private float[] relRot;
+	// Cached absolute rotation and coordinate, derived by forward kinematics
+	private float[] worldRot;
+	private float[] worldPos;
+	// One past the last slot of the subtree rooted at each slot
+	private int[] subtreeEnd;
+
+	// Stable joint id <-> array slot
+	private int[] idToSlot;
+	private int[] slotToId;
+
+	// Slots whose subtree needs to be refreshed, and the range they span
+	private boolean[] isDirty;
+	private int numDirty = 0;
+	private int minDirty, maxDirty;
+	// Joints appended since the last preorder layout
+	private boolean layoutDirty = false;
+	// Bumped whenever anything moves, so caches can tell they're stale
+	private int version = 0;
+
+	public Pose(int capacity)
+	{
+		capacity = Math.max(capacity, 1);
+		this.parent = new int[capacity];
+		this.relTrans = new float[3 * capacity];
+		this.relRot = new float[9 * capacity];
+		this.worldRot = new float[9 * capacity];
+		this.worldPos = new float[3 * capacity];
+		this.subtreeEnd = new int[capacity];
+		this.idToSlot = new int[capacity];
+		this.slotToId = new int[capacity];
+		this.isDirty = new boolean[capacity];
+	}
+
+	public Pose()
+	{
+		this(16); // default
+	}
+
+	/**
+	 * Deep copy, e.g. a private pose for each worker thread
+	 */
+	public Pose(Pose other)
+	{
+		other.settle();
+		this.size = other.size;
+		this.parent = other.parent.clone();
+		this.relTrans = other.relTrans.clone();
+		this.relRot = other.relRot.clone();
+		this.worldRot = other.worldRot.clone();
+		this.worldPos = other.worldPos.clone();
+		this.subtreeEnd = other.subtreeEnd.clone();
+		this.idToSlot = other.idToSlot.clone();
+		this.slotToId = other.slotToId.clone();
+		this.isDirty = new boolean[parent.length];
+	}
+
+	/**
+	 * Reset all transforms to those of 'other', a copy of this pose.
+	 * Doesn't allocate. 'other' is only read, so many poses can
+	 * be reset from the same one concurrently, as long as it's settled.
+	 */
+	public void set(Pose other)
+	{
+		if (other.size != size)
+			throw new IllegalArgumentException("Poses differ in size: " + other.size + " vs " + size);
+		if (other.numDirty > 0 || other.layoutDirty)
+			throw new IllegalStateException("Pose to copy from must be settled first");
+		System.arraycopy(other.relTrans, 0, relTrans, 0, 3 * size);
+		System.arraycopy(other.relRot, 0, relRot, 0, 9 * size);
+		System.arraycopy(other.worldRot, 0, worldRot, 0, 9 * size);
+		System.arraycopy(other.worldPos, 0, worldPos, 0, 3 * size);
+		Arrays.fill(isDirty, 0, size, false);
+		numDirty = 0;
+		version ++;
+	}
+
+	/**
+	 * Restore the preorder layout and refresh everything,
+	 * after which the pose is only read until it moves again
+	 */
+	public void settle()
+	{
+		if (layoutDirty)
+		{
+			relayout();
+			update();
+		}
+		else
+			refresh();
+	}
+
+	/**
+	 * Append a joint at the absolute coordinate (x, y, z)
+	 * The preorder layout is restored lazily on the next refresh
+	 * @param parent id of an existing joint, -1 for the root
+	 * @return id of the new joint
+	 */
+	public int add(int parent, float x, float y, float z)
+	{
+		if (parent >= size)
+			throw new IllegalArgumentException("Parent joint " + parent + " doesn't exist");
+		// The parent's transform must be current
+		if (numDirty > 0)	refresh();
+		ensureCapacity(size + 1);
+
+		int i = size ++;
+		int p = parent < 0 ? -1 : idToSlot[parent];
+		// Appending keeps the topological order, but not necessarily the preorder
+		layoutDirty = true;
+		version ++;
+
+		idToSlot[i] = slotToId[i] = i;
+		this.parent[i] = p;
+		setIdentity(relRot, 9*i);
+		worldPos[3*i] = x;
+		worldPos[3*i+1] = y;
+		worldPos[3*i+2] = z;
+
+		if (p < 0)
+		{
+			// Root: the world frame
+			setIdentity(worldRot, 9*i);
+			relTrans[3*i] = relTrans[3*i+1] = relTrans[3*i+2] = 0;
+		}
+		else
+		{
+			System.arraycopy(worldRot, 9*p, worldRot, 9*i, 9);
+			// Bring the offset into the parent's frame: R^T * (abs - parentAbs)
+			float dx = x - worldPos[3*p];
+			float dy = y - worldPos[3*p+1];
+			float dz = z - worldPos[3*p+2];
+			int r = 9*p;
+			relTrans[3*i] = worldRot[r] * dx + worldRot[r+3] * dy + worldRot[r+6] * dz;
+			relTrans[3*i+1] = worldRot[r+1] * dx + worldRot[r+4] * dy + worldRot[r+7] * dz;
+			relTrans[3*i+2] = worldRot[r+2] * dx + worldRot[r+5] * dy + worldRot[r+8] * dz;
+		}
+		return i;
+	}
+
+	/**
+	 * Append a joint at offset (tx, ty, tz) from its parent, in the parent's frame
+	 * @param parent id of an existing joint
+	 * @return id of the new joint
+	 */
+	public int addRelative(int parent, float tx, float ty, float tz)
+	{
+		if (parent < 0 || parent >= size)
+			throw new IllegalArgumentException("Parent joint " + parent + " doesn't exist");
+		if (numDirty > 0)	refresh();
+		// worldPos = parent.worldPos + parent.worldRot * t
+		int p = idToSlot[parent];
+		int r = 9*p;
+		return add(parent, 
+				worldPos[3*p] + worldRot[r] * tx + worldRot[r+1] * ty + worldRot[r+2] * tz,
+				worldPos[3*p+1] + worldRot[r+3] * tx + worldRot[r+4] * ty + worldRot[r+5] * tz,
+				worldPos[3*p+2] + worldRot[r+6] * tx + worldRot[r+7] * ty + worldRot[r+8] * tz);
+	}
+
+	/**
+	 * Overwrite the relative rotation of joint 'id' with the row-major 3x3 at m[o..o+9]
+	 */
+	public void setRotation(int id, float[] m, int o)
+	{
+		int slot = idToSlot[id];
+		System.arraycopy(m, o, relRot, 9*slot, 9);
+		markDirty(slot);
+	}
+
+	/**
+	 * Overwrite the relative rotation of joint 'id' with the unit quaternion (qx, qy, qz, qw)
+	 */
+	public void setRotation(int id, float qx, float qy, float qz, float qw)
+	{
+		int slot = idToSlot[id];
+		float[] r = relRot;
+		int o = 9*slot;
+		float xx = qx*qx, yy = qy*qy, zz = qz*qz;
+		float xy = qx*qy, xz = qx*qz, yz = qy*qz;
+		float wx = qw*qx, wy = qw*qy, wz = qw*qz;
+		r[o] = 1 - 2*(yy + zz);	r[o+1] = 2*(xy - wz);		r[o+2] = 2*(xz + wy);
+		r[o+3] = 2*(xy + wz);		r[o+4] = 1 - 2*(xx + zz);	r[o+5] = 2*(yz - wx);
+		r[o+6] = 2*(xz - wy);		r[o+7] = 2*(yz + wx);		r[o+8] = 1 - 2*(xx + yy);
+		markDirty(slot);
+	}
+
+	/**
+	 * The relative rotation of joint 'id' as a unit quaternion, written to q[o..o+4] as x y z w
+	 */
+	public void getRotation(int id, float[] q, int o)
+	{
+		float[] r = relRot;
+		int m = 9 * idToSlot[id];
+		float m00 = r[m], m11 = r[m+4], m22 = r[m+8];
+		float trace = m00 + m11 + m22;
+		// Divide by the largest of the four components, the others follow from it accurately
+		if (trace > 0)
+		{
+			float s = 0.5f / (float) Math.sqrt(trace + 1);
+			q[o+3] = 0.25f / s;
+			q[o] = (r[m+7] - r[m+5]) * s;
+			q[o+1] = (r[m+2] - r[m+6]) * s;
+			q[o+2] = (r[m+3] - r[m+1]) * s;
+		}
+		else if (m00 > m11 && m00 > m22)
+		{
+			float s = 2 * (float) Math.sqrt(1 + m00 - m11 - m22);
+			q[o+3] = (r[m+7] - r[m+5]) / s;
+			q[o] = 0.25f * s;
+			q[o+1] = (r[m+1] + r[m+3]) / s;
+			q[o+2] = (r[m+2] + r[m+6]) / s;
+		}
+		else if (m11 > m22)
+		{
+			float s = 2 * (float) Math.sqrt(1 + m11 - m00 - m22);
+			q[o+3] = (r[m+2] - r[m+6]) / s;
+			q[o] = (r[m+1] + r[m+3]) / s;
+			q[o+1] = 0.25f * s;
+			q[o+2] = (r[m+5] + r[m+7]) / s;
+		}
+		else
+		{
+			float s = 2 * (float) Math.sqrt(1 + m22 - m00 - m11);
+			q[o+3] = (r[m+3] - r[m+1]) / s;
+			q[o] = (r[m+2] + r[m+6]) / s;
+			q[o+1] = (r[m+5] + r[m+7]) / s;
+			q[o+2] = 0.25f * s;
+		}
+	}
+
+	/**
+	 * Move a root joint to the absolute coordinate (x, y, z)
+	 */
+	public void setPosition(int root, float x, float y, float z)
+	{
+		int slot = idToSlot[root];
+		if (parent[slot] >= 0)
+			throw new IllegalArgumentException("Only a root joint can be moved, " + root + " isn't");
+		worldPos[3*slot] = x;
+		worldPos[3*slot+1] = y;
+		worldPos[3*slot+2] = z;
+		markDirty(slot);
+	}
+
+	/**
+	 * Total bone length from joint 'base' down to its descendant 'end'
+	 * This is how far 'end' can reach from 'base'
+	 */
+	public float reach(int base, int end)
+	{
+		float len = 0;
+		int b = idToSlot[base];
+		for (int s = idToSlot[end]; s != b; s = parent[s])
+		{
+			if (s < 0)
+				throw new IllegalArgumentException("Joint " + end + " doesn't descend from " + base);
+			len += (float) Math.sqrt(relTrans[3*s]*relTrans[3*s] 
+					+ relTrans[3*s+1]*relTrans[3*s+1] + relTrans[3*s+2]*relTrans[3*s+2]);
+		}
+		return len;
+	}
+
+	/**
+	 * Forward Kinematics
+	 * Apply a rotation (unit quaternion) to joint 'id', in its own frame.
+	 * Only marks the subtree dirty, absolute coordinates are refreshed lazily.
+	 */
+	public void rotate(int id, float qx, float qy, float qz, float qw)
+	{
+		float xx = qx*qx, yy = qy*qy, zz = qz*qz;
+		float xy = qx*qy, xz = qx*qz, yz = qy*qz;
+		float wx = qw*qx, wy = qw*qy, wz = qw*qz;
+		rotate(idToSlot[id],
+				1 - 2*(yy + zz), 2*(xy - wz), 2*(xz + wy),
+				2*(xy + wz), 1 - 2*(xx + zz), 2*(yz - wx),
+				2*(xz - wy), 2*(yz + wx), 1 - 2*(xx + yy));
+	}
+
+	/**
+	 * Apply a rotation of 'angle' radians around the unit axis (ax, ay, az) in joint id's own frame.
+	 */
+	public void rotateAxis(int id, float ax, float ay, float az, float angle)
+	{
+		float half = 0.5f * angle;
+		float s = (float) Math.sin(half);
+		rotate(id, ax * s, ay * s, az * s, (float) Math.cos(half));
+	}
+
+	/**
+	 * relRot = relRot * M, where M is given row by row
+	 */
+	private void rotate(int slot,
+			float m00, float m01, float m02,
+			float m10, float m11, float m12,
+			float m20, float m21, float m22)
+	{
+		float[] r = relRot;
+		int o = 9*slot;
+		for (int row = o; row < o + 9; row += 3)
+		{
+			float a = r[row], b = r[row+1], c = r[row+2];
+			r[row] = a * m00 + b * m10 + c * m20;
+			r[row+1] = a * m01 + b * m11 + c * m21;
+			r[row+2] = a * m02 + b * m12 + c * m22;
+		}
+		orthonormalize(r, o);
+		markDirty(slot);
+	}
+
+	/**
+	 * Gram-Schmidt on the rows of the rotation at offset o.
+	 * Solvers apply thousands of small rotations, without this
+	 * the float round-off accumulates until the matrix is no longer a rotation.
+	 */
+	private static void orthonormalize(float[] r, int o)
+	{
+		float inv = 1f / (float) Math.sqrt(r[o]*r[o] + r[o+1]*r[o+1] + r[o+2]*r[o+2]);
+		r[o] *= inv;	r[o+1] *= inv;	r[o+2] *= inv;
+		float dot = r[o]*r[o+3] + r[o+1]*r[o+4] + r[o+2]*r[o+5];
+		r[o+3] -= dot * r[o];	r[o+4] -= dot * r[o+1];	r[o+5] -= dot * r[o+2];
+		inv = 1f / (float) Math.sqrt(r[o+3]*r[o+3] + r[o+4]*r[o+4] + r[o+5]*r[o+5]);
+		r[o+3] *= inv;	r[o+4] *= inv;	r[o+5] *= inv;
+		// Third row = first x second
+		r[o+6] = r[o+1]*r[o+5] - r[o+2]*r[o+4];
+		r[o+7] = r[o+2]*r[o+3] - r[o]*r[o+5];
+		r[o+8] = r[o]*r[o+4] - r[o+1]*r[o+3];
+	}
+
+	/**
+	 * The subtree rooted at slot needs its world transforms recomputed
+	 */
+	private void markDirty(int slot)
+	{
+		version ++;
+		if (isDirty[slot])	return;
+		isDirty[slot] = true;
+		if (numDirty ++ == 0)
+			minDirty = maxDirty = slot;
+		else
+		{
+			minDirty = Math.min(minDirty, slot);
+			maxDirty = Math.max(maxDirty, slot);
+		}
+	}
+
+	/**
+	 * Has any joint moved since the last refresh?
+	 */
+	public boolean isDirty() {	return numDirty > 0;	}
+
+	/**
+	 * Changes whenever a joint is added or moved
+	 */
+	public int getVersion() {	return this.version;	}
+
+	/**
+	 * Bring the cached world transforms up to date.
+	 * Each dirty subtree is a contiguous range in preorder, processed from
+	 * its top joint down: O(size of the dirty subtrees), not O(n * depth).
+	 */
+	public void refresh()
+	{
+		if (numDirty == 0)	return;
+		// Appending joints doesn't move anything, so the preorder is only
+		// restored once something actually needs to be recomputed
+		if (layoutDirty)
+		{
+			relayout();
+			update();
+			return;
+		}
+
+		// Ancestors come first in preorder. A dirty joint inside an already
+		// refreshed range is skipped. Scanning the flags instead of sorting
+		// a list of dirty slots keeps this allocation free
+		int covered = 0;
+		for (int s = minDirty; s <= maxDirty; s ++)
+		{
+			if (! isDirty[s])	continue;
+			isDirty[s] = false;
+			if (s < covered)	continue;
+			covered = subtreeEnd[s];
+			for (int i = s; i < covered; i ++)
+				updateJoint(i);
+		}
+		numDirty = 0;
+	}
+
+	/**
+	 * Recompute all absolute rotations and coordinates in a single linear pass
+	 */
+	public void update()
+	{
+		for (int i = 0; i < size; i ++)
+		{
+			updateJoint(i);
+			isDirty[i] = false;
+		}
+		numDirty = 0;
+	}
+
+	/**
+	 * Recompute the absolute transform of slot i from its parent's:
+	 * worldRot = parent.worldRot * relRot
+	 * worldPos = parent.worldPos + parent.worldRot * relTrans
+	 */
+	private void updateJoint(int i)
+	{
+		int p = parent[i];
+		int o = 9*i;
+		if (p < 0)
+		{
+			// The root's coordinate is fixed
+			System.arraycopy(relRot, o, worldRot, o, 9);
+			return;
+		}
+
+		float[] w = worldRot, r = relRot;
+		int q = 9*p;
+		for (int row = 0; row < 9; row += 3)
+		{
+			float a = w[q+row], b = w[q+row+1], c = w[q+row+2];
+			w[o+row] = a * r[o] + b * r[o+3] + c * r[o+6];
+			w[o+row+1] = a * r[o+1] + b * r[o+4] + c * r[o+7];
+			w[o+row+2] = a * r[o+2] + b * r[o+5] + c * r[o+8];
+		}
+
+		float tx = relTrans[3*i], ty = relTrans[3*i+1], tz = relTrans[3*i+2];
+		worldPos[3*i] = worldPos[3*p] + w[q] * tx + w[q+1] * ty + w[q+2] * tz;
+		worldPos[3*i+1] = worldPos[3*p+1] + w[q+3] * tx + w[q+4] * ty + w[q+5] * tz;
+		worldPos[3*i+2] = worldPos[3*p+2] + w[q+6] * tx + w[q+7] * ty + w[q+8] * tz;
+	}
+
+	/**
+	 * Permute the arrays into depth-first preorder, children in insertion order.
+	 * Only happens after the topology changed.
+	 */
+	private void relayout()
+	{
+		int n = size;
+		// Children lists (by slot) in compressed form, insertion order preserved
+		int[] childStart = new int[n + 1];
+		for (int i = 0; i < n; i ++)
+			if (parent[i] >= 0)	childStart[parent[i] + 1] ++;
+		for (int i = 0; i < n; i ++)
+			childStart[i + 1] += childStart[i];
+		int[] fill = Arrays.copyOf(childStart, n);
+		int[] childList = new int[n];
+		for (int i = 0; i < n; i ++)
+			if (parent[i] >= 0)	childList[fill[parent[i]] ++] = i;
+
+		// Iterative DFS. order[newSlot] = oldSlot
+		int[] order = new int[n];
+		int[] stack = new int[n];
+		int top = 0, k = 0;
+		for (int i = n - 1; i >= 0; i --)
+			if (parent[i] < 0)	stack[top ++] = i;
+		while (top > 0)
+		{
+			int s = stack[-- top];
+			order[k ++] = s;
+			for (int c = childStart[s + 1] - 1; c >= childStart[s]; c --)
+				stack[top ++] = childList[c];
+		}
+
+		int[] newSlot = new int[n];
+		for (int i = 0; i < n; i ++)
+			newSlot[order[i]] = i;
+
+		int[] par = new int[parent.length];
+		float[] trans = new float[relTrans.length];
+		float[] rot = new float[relRot.length];
+		float[] wpos = new float[worldPos.length];
+		for (int i = 0; i < n; i ++)
+		{
+			int old = order[i];
+			par[i] = parent[old] < 0 ? -1 : newSlot[parent[old]];
+			System.arraycopy(relTrans, 3*old, trans, 3*i, 3);
+			System.arraycopy(relRot, 9*old, rot, 9*i, 9);
+			System.arraycopy(worldPos, 3*old, wpos, 3*i, 3);
+			int id = slotToId[old];
+			order[i] = id; // reuse as the new slotToId
+			idToSlot[id] = i;
+		}
+		parent = par;
+		relTrans = trans;
+		relRot = rot;
+		worldPos = wpos;
+		System.arraycopy(order, 0, slotToId, 0, n);
+
+		// Subtree ranges
+		for (int i = 0; i < n; i ++)
+			subtreeEnd[i] = i + 1;
+		for (int i = n - 1; i > 0; i --)
+			if (parent[i] >= 0)
+				subtreeEnd[parent[i]] = Math.max(subtreeEnd[parent[i]], subtreeEnd[i]);
+		layoutDirty = false;
+	}
+
+	/**
+	 * How many joints
+	 */
+	public int size() {	return this.size;	}
+
+	/**
+	 * Array slot of joint 'id'.
+	 * Changes only when the layout is restored after joints were added.
+	 */
+	public int slot(int id) {	return this.idToSlot[id];	}
+
+	/**
+	 * Joint id stored at array slot 's'
+	 */
+	public int id(int slot) {	return this.slotToId[slot];	}
+
+	/**
+	 * Slot of the parent joint, -1 for the root
+	 */
+	public int getParentSlot(int slot) {	return this.parent[slot];	}
+
+	/**
+	 * One past the last slot of the subtree rooted at 'slot'
+	 */
+	public int getSubtreeEnd(int slot)
+	{
+		if (layoutDirty)
+		{
+			relayout();
+			update();
+		}
+		return this.subtreeEnd[slot];
+	}
+
+	/**
+	 * Raw absolute coordinates, 3 floats per slot. Read only.
+	 * Refreshed lazily if anything moved.
+	 */
+	public float[] getWorldPos()
+	{
+		refresh();
+		return this.worldPos;
+	}
+
+	/**
+	 * Raw absolute rotations, 9 floats per slot, row-major. Read only.
+	 * Refreshed lazily if anything moved.
+	 */
+	public float[] getWorldRot()
+	{
+		refresh();
+		return this.worldRot;
+	}
+
+	/**
+	 * Raw relative translations w.r.t. parent, 3 floats per slot. Read only.
+	 */
+	public float[] getRelTrans() {	return this.relTrans;	}
+
+	/**
+	 * Raw relative rotations w.r.t. parent, 9 floats per slot, row-major. Read only.
+	 */
+	public float[] getRelRot() {	return this.relRot;	}
+
+	private void ensureCapacity(int capacity)
+	{
+		if (capacity <= parent.length)	return;
+		int cap = Math.max(capacity, 2 * parent.length);
+		parent = Arrays.copyOf(parent, cap);
+		relTrans = Arrays.copyOf(relTrans, 3 * cap);
+		relRot = Arrays.copyOf(relRot, 9 * cap);
+		worldRot = Arrays.copyOf(worldRot, 9 * cap);
+		worldPos = Arrays.copyOf(worldPos, 3 * cap);
+		subtreeEnd = Arrays.copyOf(subtreeEnd, cap);
+		idToSlot = Arrays.copyOf(idToSlot, cap);
+		slotToId = Arrays.copyOf(slotToId, cap);
+		isDirty = Arrays.copyOf(isDirty, cap);
+	}
+
+	private static void setIdentity(float[] m, int o)
+	{
+		Arrays.fill(m, o, o + 9, 0f);
+		m[o] = m[o+4] = m[o+8] = 1f;
+	}
+}
@@ -0,0 +1,219 @@
+package kinematics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Plays back an animation clip: keyframes in the PoseRecorder file format,
+ * recorded or authored, sampled at any time in between.
+ *
+ * Keyframes are streamed from the file, never loaded into the heap: the file is
+ * mapped one window at a time and the OS pages frames in as playback reaches them.
+ * In between two keyframes every joint's rotation is interpolated along the
+ * shortest arc, by slerp or the cheaper nlerp, and written into the pose,
+ * which marks the rotated joints dirty like any other rotation.
+ * Sampling doesn't allocate, only moving to a new window maps it.
+ */
+public class PoseClip implements Closeable
+{
+	// Bytes mapped at a time
+	private static final long WINDOW = 64L << 20;
+	// Closer than this and slerp is no better than nlerp, which doesn't divide by sin(angle)
+	private static final float NEARLY_PARALLEL = 0.9995f;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int joints;
+	// Floats per frame
+	private final int stride;
+	private final long frames;
+	// Frames per window, one more is mapped so a frame and the next are always in the same window
+	private final int framesPerWindow;
+
+	// The window mapped now, its first frame and how many frames it maps
+	private FloatBuffer window;
+	private long windowFirst;
+	private long windowCount;
+	// Keyframe at or before the last sampled time
+	private long cursor = 0;
+	// The two keyframes around the sampled time
+	private final float[] from, to;
+	private boolean slerp = true;
+
+	public PoseClip(File path) throws IOException
+	{
+		file = new RandomAccessFile(path, "r");
+		channel = file.getChannel();
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, PoseRecorder.HEADER);
+		if (header.getInt() != PoseRecorder.MAGIC || header.getInt() != PoseRecorder.VERSION)
+		{
+			file.close();
+			throw new IOException(path + " isn't a pose recording");
+		}
+		joints = header.getInt();
+		stride = header.getInt() / 4;
+		// The file runs on past the recorded frames, a recording cut short may be missing some
+		frames = Math.min(header.getLong(),
+				(channel.size() - PoseRecorder.HEADER) / (4L * stride));
+		if (stride != PoseRecorder.frameBytes(joints) / 4 || frames < 1)
+		{
+			file.close();
+			throw new IOException(path + " has no frames or an unknown frame layout");
+		}
+		framesPerWindow = (int) Math.max(WINDOW / (4L * stride), 1);
+		from = new float[stride];
+		to = new float[stride];
+	}
+
+	/**
+	 * How many joints the clip animates
+	 */
+	public int getJointCount() {	return this.joints;	}
+
+	/**
+	 * How many keyframes
+	 */
+	public long getFrameCount() {	return this.frames;	}
+
+	/**
+	 * Time of the first keyframe, in seconds
+	 */
+	public float getStartTime() {	return time(0);	}
+
+	/**
+	 * Time of the last keyframe, in seconds
+	 */
+	public float getEndTime() {	return time(frames - 1);	}
+
+	/**
+	 * Slerp, the default, or nlerp: normalized linear interpolation of the quaternions.
+	 * Nlerp is cheaper and indistinguishable between close keyframes, but doesn't keep a constant speed
+	 */
+	public void setSlerp(boolean slerp) {	this.slerp = slerp;	}
+
+	/**
+	 * Write the clip's pose at 'time' into 'pose', clamped to the clip
+	 */
+	public void sample(float time, Pose pose)
+	{
+		if (pose.size() != joints)
+			throw new IllegalArgumentException("The clip has " + joints + " joints, the pose " + pose.size());
+		// Playback mostly moves forward a frame or so, a jump back starts over
+		if (time < time(cursor))
+			cursor = search(time);
+		while (cursor + 1 < frames && time(cursor + 1) <= time)
+			cursor ++;
+
+		FloatBuffer w = window(cursor);
+		w.position((int) (cursor - windowFirst) * stride);
+		w.get(from);
+		if (cursor + 1 == frames)
+		{
+			apply(from, pose);
+			return;
+		}
+		w.get(to);
+		float span = to[0] - from[0];
+		float u = span > 0 ? Math.min(Math.max((time - from[0]) / span, 0), 1) : 0;
+
+		// Root coordinate
+		pose.setPosition(0, from[1] + u * (to[1] - from[1]),
+				from[2] + u * (to[2] - from[2]), from[3] + u * (to[3] - from[3]));
+		for (int id = 0, o = 4; id < joints; id ++, o += 4)
+		{
+			float ax = from[o], ay = from[o+1], az = from[o+2], aw = from[o+3];
+			float bx = to[o], by = to[o+1], bz = to[o+2], bw = to[o+3];
+			float dot = ax*bx + ay*by + az*bz + aw*bw;
+			// q and -q are the same rotation, take the shorter way round
+			if (dot < 0)
+			{
+				bx = -bx;	by = -by;	bz = -bz;	bw = -bw;
+				dot = -dot;
+			}
+			float ka = 1 - u, kb = u;
+			if (slerp && dot < NEARLY_PARALLEL)
+			{
+				float angle = (float) Math.acos(dot);
+				float inv = 1 / (float) Math.sin(angle);
+				ka = (float) Math.sin(ka * angle) * inv;
+				kb = (float) Math.sin(kb * angle) * inv;
+			}
+			float x = ka * ax + kb * bx, y = ka * ay + kb * by, z = ka * az + kb * bz, qw = ka * aw + kb * bw;
+			// Slerp stays unit length, nlerp needs normalizing
+			float len = 1 / (float) Math.sqrt(x*x + y*y + z*z + qw*qw);
+			pose.setRotation(id, x * len, y * len, z * len, qw * len);
+		}
+	}
+
+	/**
+	 * A keyframe as it is
+	 */
+	private void apply(float[] frame, Pose pose)
+	{
+		pose.setPosition(0, frame[1], frame[2], frame[3]);
+		for (int id = 0, o = 4; id < joints; id ++, o += 4)
+			pose.setRotation(id, frame[o], frame[o+1], frame[o+2], frame[o+3]);
+	}
+
+	/**
+	 * Last keyframe at or before 'time', 0 if none: binary search, keyframe times never decrease
+	 */
+	private long search(float time)
+	{
+		long lo = 0, hi = frames - 1;
+		while (lo < hi)
+		{
+			long mid = (lo + hi + 1) >>> 1;
+			if (time(mid) <= time)	lo = mid;
+			else					hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * Time of a keyframe, read from the window mapped now if it holds it,
+	 * else from the window of the keyframe before it, so stepping from a keyframe
+	 * to the next doesn't map another window
+	 */
+	private float time(long frame)
+	{
+		FloatBuffer w = window;
+		if (w == null || frame < windowFirst || frame >= windowFirst + windowCount)
+			w = window(Math.max(frame - 1, 0));
+		return w.get((int) (frame - windowFirst) * stride);
+	}
+
+	/**
+	 * The window holding 'frame' and the one after it, mapped if it isn't already
+	 */
+	private FloatBuffer window(long frame)
+	{
+		if (window == null || frame < windowFirst || frame >= windowFirst + framesPerWindow)
+		{
+			long first = frame - frame % framesPerWindow;
+			long count = Math.min(framesPerWindow + 1L, frames - first);
+			try {
+				window = channel.map(FileChannel.MapMode.READ_ONLY,
+						PoseRecorder.HEADER + first * stride * 4, count * stride * 4).asFloatBuffer();
+				windowCount = count;
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't read the clip", e);
+			}
+			windowFirst = first;
+		}
+		return window;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		window = null;
+		file.close();
+	}
+}
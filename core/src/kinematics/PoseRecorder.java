@@ -0,0 +1,144 @@
+package kinematics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Records a pose every frame to a compact binary file, for long sessions.
+ *
+ * The file is written through memory mapped windows of the file: recording a frame
+ * is a copy into memory, the OS writes the pages back to disk in the background,
+ * so the render thread never waits on a write. No allocation per frame,
+ * only one new mapping every WINDOW bytes.
+ *
+ * Layout, big endian:
+ * header of HEADER bytes: magic "POSE", format version, joints, stride in bytes, frames (long)
+ * then one fixed-stride frame after another: time (s), root coordinate x y z,
+ * and the relative rotation of every joint in id order as a quaternion x y z w.
+ * The frame count is kept current and is what readers go by, so a recording cut short is
+ * still readable. On close the file is cut down to the recorded frames.
+ */
+public class PoseRecorder implements Closeable
+{
+	public static final int MAGIC = 0x504F5345; // "POSE"
+	public static final int VERSION = 1;
+	public static final int HEADER = 32;
+	// Offset of the frame count in the header
+	public static final int FRAMES_AT = 16;
+	// Bytes mapped at a time, also the most the file runs past its frames if it can't be cut down
+	private static final long WINDOW = 8L << 20;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final MappedByteBuffer header;
+	private final int joints;
+	private final int stride;
+	private final int framesPerWindow;
+
+	// Current window: its offset in the file, its mapping and a float view of it
+	private long windowStart;
+	private MappedByteBuffer mapped;
+	private FloatBuffer window;
+	// One frame, assembled before a single bulk copy
+	private final float[] frame;
+	private long frames = 0;
+
+	/**
+	 * Start a recording, overwrites 'path'
+	 * @param joints how many joints the recorded poses have
+	 */
+	public PoseRecorder(File path, int joints) throws IOException
+	{
+		this.joints = joints;
+		this.stride = frameBytes(joints);
+		this.framesPerWindow = (int) Math.max(WINDOW / stride, 1);
+		this.frame = new float[stride / 4];
+
+		// Not emptied first, that fails while a clip still maps it. Old frames past the count are ignored
+		// until close cuts them off
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+		header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+		header.putInt(MAGIC).putInt(VERSION).putInt(joints).putInt(stride).putLong(0);
+		windowStart = HEADER;
+		map();
+	}
+
+	/**
+	 * Bytes per recorded frame
+	 */
+	public static int frameBytes(int joints)
+	{
+		return 4 * (1 + 3 + 4 * joints);
+	}
+
+	/**
+	 * Append one frame
+	 * @param time when it was shown, in seconds
+	 */
+	public void record(Pose pose, float time)
+	{
+		if (pose.size() != joints)
+			throw new IllegalArgumentException("Recording " + joints + " joints, the pose has " + pose.size());
+		float[] pos = pose.getWorldPos();
+		int root = 3 * pose.slot(0);
+		frame[0] = time;
+		frame[1] = pos[root];
+		frame[2] = pos[root+1];
+		frame[3] = pos[root+2];
+		for (int id = 0; id < joints; id ++)
+			pose.getRotation(id, frame, 4 + 4 * id);
+
+		// A full window isn't forced, that would block on the write. The OS writes it back
+		if (! window.hasRemaining())
+		{
+			windowStart += (long) framesPerWindow * stride;
+			try {
+				map();
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't extend the recording", e);
+			}
+		}
+		window.put(frame);
+		header.putLong(FRAMES_AT, ++ frames);
+	}
+
+	/**
+	 * Map the next window, this grows the file
+	 */
+	private void map() throws IOException
+	{
+		mapped = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, (long) framesPerWindow * stride);
+		window = mapped.asFloatBuffer();
+	}
+
+	/**
+	 * How many frames are recorded so far
+	 */
+	public long getFrameCount() {	return this.frames;	}
+
+	/**
+	 * Release the mappings and cut the file down to the recorded frames.
+	 * Java can't unmap a file, the mappings go when they're collected. Where a mapped file can't be
+	 * truncated (Windows) the rest of the last window stays, past the frame count
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		mapped = null;
+		window = null;
+		try {
+			channel.truncate(HEADER + frames * stride);
+		} catch (IOException e) {
+			// Still mapped, readers go by the frame count
+		} finally {
+			file.close();
+		}
+	}
+}
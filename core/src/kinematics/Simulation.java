@@ -0,0 +1,208 @@
+package kinematics;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Many independent skeletons simulated at once, e.g. a crowd of chains and spiders.
+ *
+ * Every tick advances all rigs across the cores of a fork-join pool, each rig
+ * on its own pose. Once all of them are done, their poses are published to the
+ * render thread in one batch through a lock-free triple buffer: the render thread
+ * always sees every rig at the same tick, and never waits for a tick in progress.
+ */
+public class Simulation
+{
+	/**
+	 * What a rig does every tick: forward kinematics, IK towards moving targets...
+	 * Rigs are ticked concurrently, each must only touch its own pose and solvers
+	 */
+	public interface Rig
+	{
+		void tick(Pose pose, float time, float dt);
+	}
+
+	private final ForkJoinPool pool;
+	// Rigs per fork-join task
+	private int chunkSize = 16;
+
+	private final ArrayList<Rig> rigs = new ArrayList<Rig>();
+	private final ArrayList<Pose> poses = new ArrayList<Pose>();
+	// All rigs' snapshots, swapped as a whole. Built on the first tick
+	private TripleBuffer<Pose[]> published;
+	private float time = 0;
+
+	// Ticks at a fixed rate on its own thread, see start()
+	private Thread thread;
+	private volatile boolean running = false;
+
+	/**
+	 * @param pool fork-join pool the rigs are ticked on
+	 */
+	public Simulation(ForkJoinPool pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * Tick on all available cores
+	 */
+	public Simulation()
+	{
+		this(new ForkJoinPool());
+	}
+
+	/**
+	 * The pool rigs are ticked on, e.g. for the rigs' own MultiIKSolvers
+	 */
+	public ForkJoinPool getPool() {	return this.pool;	}
+
+	/**
+	 * Add a rig, before the first tick
+	 * @param pose its starting pose, copied: the simulation ticks its own
+	 * @return index of the rig in the published batches
+	 */
+	public int add(Pose pose, Rig rig)
+	{
+		if (published != null)
+			throw new IllegalStateException("Rigs must be added before the first tick");
+		poses.add(new Pose(pose));
+		rigs.add(rig);
+		return rigs.size() - 1;
+	}
+
+	/**
+	 * The simulation's own pose of a rig, e.g. to bind its solvers before the first tick
+	 */
+	public Pose getPose(int rig) {	return poses.get(rig);	}
+
+	/**
+	 * How many rigs
+	 */
+	public int size() {	return rigs.size();	}
+
+	/**
+	 * Rigs per fork-join task, default = 16
+	 */
+	public void setChunkSize(int chunkSize) {	this.chunkSize = Math.max(chunkSize, 1);	}
+
+	/**
+	 * Advance every rig by dt seconds, then publish all poses at once.
+	 * Ticks must come from one thread at a time
+	 */
+	public void tick(float dt)
+	{
+		if (published == null)
+			published = new TripleBuffer<Pose[]>(snapshots(), snapshots(), snapshots());
+		pool.invoke(new Chunk(published.getBack(), dt, 0, rigs.size()));
+		published.publish();
+		time += dt;
+	}
+
+	private Pose[] snapshots()
+	{
+		Pose[] batch = new Pose[poses.size()];
+		for (int i = 0; i < batch.length; i ++)
+			batch[i] = new Pose(poses.get(i));
+		return batch;
+	}
+
+	/**
+	 * Render thread: the poses of all rigs after the latest tick, if there was one since the last poll
+	 * @return null if nothing new. One pose per rig, read only, valid until the next poll
+	 */
+	public Pose[] poll()
+	{
+		if (published == null || ! published.update())
+			return null;
+		return published.getFront();
+	}
+
+	/**
+	 * Tick on a thread of its own, every dt seconds
+	 */
+	public void start(final float dt)
+	{
+		running = true;
+		thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				long period = (long) (dt * 1e9), next = System.nanoTime();
+				while (running)
+				{
+					tick(dt);
+					next += period;
+					long wait = next - System.nanoTime();
+					if (wait > 0)
+						LockSupport.parkNanos(wait);
+					else
+						next = System.nanoTime(); // fell behind, don't try to catch up
+				}
+			}
+		}, "Simulation");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop ticking and wait for the tick in progress to finish
+	 */
+	public void stop()
+	{
+		running = false;
+		if (thread == null)	return;
+		boolean interrupted = false;
+		while (thread.isAlive())
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		thread = null;
+	}
+
+	/**
+	 * Ticks rigs [from, to), splitting until a chunk is small enough
+	 */
+	private class Chunk extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final Pose[] batch;
+		private final float dt;
+		private final int from, to;
+
+		Chunk(Pose[] batch, float dt, int from, int to)
+		{
+			this.batch = batch;
+			this.dt = dt;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from > chunkSize)
+			{
+				int mid = (from + to) >>> 1;
+				invokeAll(new Chunk(batch, dt, from, mid), new Chunk(batch, dt, mid, to));
+				return;
+			}
+			for (int i = from; i < to; i ++)
+			{
+				Pose pose = poses.get(i);
+				rigs.get(i).tick(pose, time, dt);
+				// Snapshots are copied from a settled pose
+				pose.settle();
+				batch[i].set(pose);
+			}
+		}
+	}
+}
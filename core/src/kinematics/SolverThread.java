@@ -0,0 +1,117 @@
+package kinematics;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Runs inverse kinematics on a dedicated thread, against its own copy of the pose,
+ * so a heavy solve never holds up the render thread.
+ *
+ * Targets go in and solved poses come out through lock-free triple buffers:
+ * the render thread posts the latest target and picks up the last completed
+ * snapshot whenever it likes, without ever waiting for the solver.
+ * Only the latest target is solved, stale ones are dropped.
+ */
+public class SolverThread implements Runnable
+{
+	/**
+	 * One solve towards a target, run on the solver thread
+	 */
+	public interface Job
+	{
+		void solve(Pose pose, float x, float y, float z);
+	}
+
+	private final Job job;
+	// The solver thread's pose, only touched there once started
+	private final Pose pose;
+	private final TripleBuffer<float[]> targets;
+	private final TripleBuffer<Pose> snapshots;
+
+	private Thread thread;
+	private volatile boolean running = false;
+
+	/**
+	 * @param pose the starting pose, copied
+	 */
+	public SolverThread(Pose pose, Job job)
+	{
+		this.job = job;
+		this.pose = new Pose(pose);
+		this.targets = new TripleBuffer<float[]>(new float[3], new float[3], new float[3]);
+		this.snapshots = new TripleBuffer<Pose>(new Pose(pose), new Pose(pose), new Pose(pose));
+	}
+
+	/**
+	 * The solver thread's own pose: bind solvers to it before start()
+	 */
+	public Pose getPose() {	return this.pose;	}
+
+	public void start()
+	{
+		running = true;
+		thread = new Thread(this, "IK solver");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop and wait for the solve in progress to finish
+	 */
+	public void stop()
+	{
+		running = false;
+		if (thread == null)	return;
+		LockSupport.unpark(thread);
+		boolean interrupted = false;
+		while (thread.isAlive())
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		thread = null;
+	}
+
+	/**
+	 * Render thread: the latest target, replaces any that isn't solved yet
+	 */
+	public void post(float x, float y, float z)
+	{
+		float[] t = targets.getBack();
+		t[0] = x;	t[1] = y;	t[2] = z;
+		targets.publish();
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Render thread: the pose solved last, if there's a new one since the last poll
+	 * @return null if nothing new. Read only, valid until the next poll
+	 */
+	public Pose poll()
+	{
+		return snapshots.update() ? snapshots.getFront() : null;
+	}
+
+	@Override
+	public void run()
+	{
+		while (running)
+		{
+			if (! targets.update())
+			{
+				// Sleep until the next post() or stop(). Spurious wake-ups just loop
+				LockSupport.park(this);
+				continue;
+			}
+			float[] t = targets.getFront();
+			job.solve(pose, t[0], t[1], t[2]);
+			// Snapshots are copied from a settled pose
+			pose.settle();
+			snapshots.getBack().set(pose);
+			snapshots.publish();
+		}
+	}
+}
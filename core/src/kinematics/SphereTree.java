@@ -0,0 +1,249 @@
+package kinematics;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Picking index: a bounding volume hierarchy of axis-aligned boxes over
+ * one sphere per joint, centered at the joint's world coordinate.
+ *
+ * Built once per skeleton. When joints move, the boxes are refitted
+ * bottom-up in O(n) instead of rebuilding the tree. A pick descends only into
+ * boxes the ray enters closer than the best hit so far, then tests the spheres
+ * analytically: logarithmic in joint count, independent of any mesh tessellation.
+ */
+public class SphereTree
+{
+	private final Pose pose;
+	// Sphere radius per joint id
+	private final float[] radius;
+	private int builtSize = -1;
+	private int fittedVersion;
+
+	// Nodes: children always come after their parent, node 0 is the root
+	private int numNodes;
+	// Box per node: min x y z, max x y z
+	private float[] box = new float[0];
+	// Left child of an inner node, -1 - joint id for a leaf. The right child is left + 1
+	private int[] left = new int[0];
+
+	// Build and traversal scratch
+	private int[] ids = new int[0];
+	private int[] stack = new int[0];
+
+	/**
+	 * @param radius sphere radius per joint id, read on every refit. 0 = not pickable
+	 */
+	public SphereTree(Pose pose, float[] radius)
+	{
+		this.pose = pose;
+		this.radius = radius;
+	}
+
+	/**
+	 * Id of the closest joint whose sphere the ray hits, -1 if none.
+	 * The ray starts at o and runs along d (needn't be unit length)
+	 */
+	public int pick(float ox, float oy, float oz, float dx, float dy, float dz)
+	{
+		if (pose.size() == 0)
+			return -1;
+		if (pose.size() != builtSize)
+			build();
+		else if (pose.getVersion() != fittedVersion)
+			refit();
+
+		float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+		float dd = dx*dx + dy*dy + dz*dz;
+		float[] pos = pose.getWorldPos();
+		float best = Float.POSITIVE_INFINITY;
+		int hit = -1;
+
+		int top = 0;
+		stack[top ++] = 0;
+		while (top > 0)
+		{
+			int node = stack[-- top];
+			if (enter(node, ox, oy, oz, ix, iy, iz) >= best)
+				continue;
+			int l = left[node];
+			if (l < 0)
+			{
+				// Leaf: |o + t d - c| = r, nearest t >= 0
+				// Measured from the point of the ray closest to the center,
+				// which doesn't lose precision to cancellation like the textbook quadratic
+				int id = -1 - l;
+				int s = 3 * pose.slot(id);
+				float cx = pos[s] - ox, cy = pos[s+1] - oy, cz = pos[s+2] - oz;
+				float tc = (cx*dx + cy*dy + cz*dz) / dd;
+				float px = cx - tc * dx, py = cy - tc * dy, pz = cz - tc * dz;
+				float h = radius[id] * radius[id] - (px*px + py*py + pz*pz);
+				if (h < 0 || radius[id] <= 0)	continue;
+				float half = (float) Math.sqrt(h / dd);
+				float t = tc - half;
+				if (t < 0)	t = tc + half; // starts inside the sphere
+				if (t >= 0 && t < best)
+				{
+					best = t;
+					hit = id;
+				}
+				continue;
+			}
+			// Visit the nearer child first: push it last
+			float tl = enter(l, ox, oy, oz, ix, iy, iz);
+			float tr = enter(l + 1, ox, oy, oz, ix, iy, iz);
+			if (tl <= tr)
+			{
+				if (tr < best)	stack[top ++] = l + 1;
+				if (tl < best)	stack[top ++] = l;
+			}
+			else
+			{
+				if (tl < best)	stack[top ++] = l;
+				if (tr < best)	stack[top ++] = l + 1;
+			}
+		}
+		return hit;
+	}
+
+	/**
+	 * Ray parameter where the ray enters the node's box, infinity if it misses (slab test)
+	 */
+	private float enter(int node, float ox, float oy, float oz, float ix, float iy, float iz)
+	{
+		int b = 6 * node;
+		float t1 = (box[b] - ox) * ix, t2 = (box[b+3] - ox) * ix;
+		float tmin = Math.min(t1, t2), tmax = Math.max(t1, t2);
+		t1 = (box[b+1] - oy) * iy;
+		t2 = (box[b+4] - oy) * iy;
+		tmin = Math.max(tmin, Math.min(t1, t2));
+		tmax = Math.min(tmax, Math.max(t1, t2));
+		t1 = (box[b+2] - oz) * iz;
+		t2 = (box[b+5] - oz) * iz;
+		tmin = Math.max(tmin, Math.min(t1, t2));
+		tmax = Math.min(tmax, Math.max(t1, t2));
+		if (tmax < Math.max(tmin, 0))
+			return Float.POSITIVE_INFINITY;
+		return Math.max(tmin, 0);
+	}
+
+	/**
+	 * Rebuild the tree from scratch: median splits along the longest axis.
+	 * Refits keep the topology, rebuild after the joints moved a lot
+	 */
+	public void build()
+	{
+		int n = pose.size();
+		builtSize = n;
+		numNodes = Math.max(2 * n - 1, 1);
+		if (left.length < numNodes)
+		{
+			box = new float[6 * numNodes];
+			left = new int[numNodes];
+			ids = new int[n];
+			stack = new int[numNodes];
+		}
+		for (int i = 0; i < n; i ++)
+			ids[i] = i;
+
+		// Iterative: each entry is (node, from, to) over ids
+		int[] work = new int[3 * numNodes];
+		int top = 0, next = 1;
+		work[top ++] = 0;
+		work[top ++] = 0;
+		work[top ++] = n;
+		float[] pos = pose.getWorldPos();
+		while (top > 0)
+		{
+			int to = work[-- top], from = work[-- top], node = work[-- top];
+			if (to - from <= 1)
+			{
+				left[node] = n == 0 ? -1 : -1 - ids[from];
+				continue;
+			}
+			// Longest axis of the centers
+			float[] lo = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+			float[] hi = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+			for (int i = from; i < to; i ++)
+				for (int k = 0; k < 3; k ++)
+				{
+					float c = pos[3 * pose.slot(ids[i]) + k];
+					lo[k] = Math.min(lo[k], c);
+					hi[k] = Math.max(hi[k], c);
+				}
+			int axis = 0;
+			for (int k = 1; k < 3; k ++)
+				if (hi[k] - lo[k] > hi[axis] - lo[axis])	axis = k;
+
+			int mid = (from + to) >>> 1;
+			select(pos, axis, from, to - 1, mid);
+			left[node] = next;
+			work[top ++] = next;
+			work[top ++] = from;
+			work[top ++] = mid;
+			work[top ++] = next + 1;
+			work[top ++] = mid;
+			work[top ++] = to;
+			next += 2;
+		}
+		refit();
+	}
+
+	/**
+	 * Partially sort ids[lo..hi] so that ids[k] holds the median along 'axis' (quickselect)
+	 */
+	private void select(float[] pos, int axis, int lo, int hi, int k)
+	{
+		while (lo < hi)
+		{
+			float pivot = pos[3 * pose.slot(ids[(lo + hi) >>> 1]) + axis];
+			int i = lo, j = hi;
+			while (i <= j)
+			{
+				while (pos[3 * pose.slot(ids[i]) + axis] < pivot)	i ++;
+				while (pos[3 * pose.slot(ids[j]) + axis] > pivot)	j --;
+				if (i <= j)
+				{
+					int t = ids[i];
+					ids[i ++] = ids[j];
+					ids[j --] = t;
+				}
+			}
+			if (k <= j)			hi = j;
+			else if (k >= i)	lo = i;
+			else				return;
+		}
+	}
+
+	/**
+	 * Recompute all boxes from the joints' current coordinates, children before parents
+	 */
+	public void refit()
+	{
+		float[] pos = pose.getWorldPos();
+		fittedVersion = pose.getVersion();
+		if (builtSize == 0)	return;
+		for (int node = numNodes - 1; node >= 0; node --)
+		{
+			int b = 6 * node, l = left[node];
+			if (l < 0)
+			{
+				int id = -1 - l;
+				int s = 3 * pose.slot(id);
+				float r = radius[id];
+				for (int k = 0; k < 3; k ++)
+				{
+					box[b+k] = pos[s+k] - r;
+					box[b+3+k] = pos[s+k] + r;
+				}
+			}
+			else
+			{
+				int bl = 6 * l, br = 6 * (l + 1);
+				for (int k = 0; k < 3; k ++)
+				{
+					box[b+k] = Math.min(box[bl+k], box[br+k]);
+					box[b+3+k] = Math.max(box[bl+3+k], box[br+3+k]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package kinematics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Lock-free hand-off of the latest value from one writer thread to one reader thread.
+ *
+ * The writer fills its back buffer and publishes it, the reader picks up
+ * the latest published one as its front buffer. The third buffer sits in the middle,
+ * swapped atomically with either side, so neither thread ever waits for the other
+ * and the reader never sees a buffer the writer is still filling.
+ * Values published in between two reads are skipped.
+ */
+public class TripleBuffer<T>
+{
+	// Set on the middle index while it holds a value the reader hasn't taken yet
+	private static final int FRESH = 4;
+
+	private final T buffer0, buffer1, buffer2;
+	private final AtomicInteger middle = new AtomicInteger(2);
+	// Owned by the writer and by the reader respectively
+	private int back = 0, front = 1;
+
+	/**
+	 * The three buffers, all alike
+	 */
+	public TripleBuffer(T buffer0, T buffer1, T buffer2)
+	{
+		this.buffer0 = buffer0;
+		this.buffer1 = buffer1;
+		this.buffer2 = buffer2;
+	}
+
+	private T buffer(int index)
+	{
+		return index == 0 ? buffer0 : index == 1 ? buffer1 : buffer2;
+	}
+
+	/**
+	 * Writer: the buffer to fill next
+	 */
+	public T getBack() {	return buffer(back);	}
+
+	/**
+	 * Writer: hand the back buffer over to the reader, get the middle one to fill next
+	 */
+	public void publish()
+	{
+		back = middle.getAndSet(back | FRESH) & ~FRESH;
+	}
+
+	/**
+	 * Reader: take the latest published buffer, if there's a new one
+	 * @return whether the front buffer changed
+	 */
+	public boolean update()
+	{
+		if ((middle.get() & FRESH) == 0)	return false;
+		front = middle.getAndSet(front) & ~FRESH;
+		return true;
+	}
+
+	/**
+	 * Reader: the latest buffer taken by update()
+	 */
+	public T getFront() {	return buffer(front);	}
+}
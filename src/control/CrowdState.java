@@ -0,0 +1,188 @@
+package control;
+
+import kinematics.*;
+import skeleton.*;
+
+import com.jme3.app.*;
+import com.jme3.app.state.*;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.queue.RenderQueue.ShadowMode;
+import com.jme3.scene.BatchNode;
+import com.jme3.scene.Node;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * A crowd of independent chains and spiders on a grid, each chasing its own moving targets.
+ * The rigs are simulated concurrently off the render thread, which only shows
+ * the latest tick. All drawn as one batched node.
+ */
+public class CrowdState extends AbstractAppState
+{
+	// Every 4th rig is a spider
+	private static final int SPIDER_EVERY = 4;
+	// Joints per chain
+	private static final int CHAIN = 6;
+	// Grid cell of one rig
+	private static final float SPACING = 8f;
+	// Simulation ticks per second
+	private static final float RATE = 60f;
+
+	private final int count;
+	private Node rootNode;
+	private BatchNode node;
+	private Joint[] roots;
+	private Simulation simulation;
+
+	public CrowdState(int count)
+	{
+		super();
+		this.count = count;
+	}
+
+	@Override
+	public void initialize(AppStateManager stateManager, Application _app)
+	{
+		super.initialize(stateManager, _app);
+		rootNode = ((SimpleApplication) _app).getRootNode();
+		node = new BatchNode("Crowd");
+		simulation = new Simulation();
+		roots = new Joint[count];
+
+		int columns = (int) Math.ceil(Math.sqrt(count));
+		for (int i = 0; i < count; i ++)
+		{
+			Vector3f at = new Vector3f(
+					(i % columns - (columns - 1) / 2f) * SPACING,
+					(i / columns - (columns - 1) / 2f) * SPACING, 0);
+			float phase = i * 0.7f;
+			if (i % SPIDER_EVERY == SPIDER_EVERY - 1)
+				addSpider(i, at, phase);
+			else
+				addChain(i, at, phase);
+			roots[i].attach(node);
+		}
+
+		node.setShadowMode(ShadowMode.CastAndReceive);
+		node.batch();
+		rootNode.attachChild(node);
+		simulation.start(1 / RATE);
+	}
+
+	/**
+	 * Show the latest tick of all rigs at once
+	 */
+	@Override
+	public void update(float tpf)
+	{
+		Pose[] batch = simulation.poll();
+		if (batch == null)	return;
+		for (int i = 0; i < count; i ++)
+		{
+			roots[i].getPose().set(batch[i]);
+			roots[i].update();
+		}
+	}
+
+	@Override
+	public void cleanup()
+	{
+		super.cleanup();
+		simulation.stop();
+		simulation.getPool().shutdown();
+		node.removeFromParent();
+	}
+
+	/**
+	 * How far back the camera must be to see the whole crowd
+	 */
+	public float getViewDistance()
+	{
+		return (float) Math.ceil(Math.sqrt(count)) * SPACING * 1.2f;
+	}
+
+	/**
+	 * A chain whose end joint circles around its root
+	 */
+	private void addChain(int i, final Vector3f at, final float phase)
+	{
+		Joint root = new Joint("Root" + i, null, at, null);
+		Joint prev = root;
+		for (int k = 1; k < CHAIN; k ++)
+		{
+			Class<? extends AbstractBone> boneClass = k == CHAIN - 1 ? ConeBone.class :
+							  k % 2 == 1 ? CylinderBone.class : EllipsoidBone.class;
+			prev = new Joint("J" + i + "_" + k, prev, at.add(k, (k % 2) * 0.1f, 0), boneClass);
+		}
+		roots[i] = root;
+
+		final int end = prev.getIndex();
+		final float reach = root.getPose().reach(root.getIndex(), end);
+		final IKSolver solver = new JacobianSolver();
+		simulation.add(root.getPose(), new Simulation.Rig()
+		{
+			@Override
+			public void tick(Pose pose, float time, float dt)
+			{
+				float a = time + phase, r = 0.6f * reach;
+				solver.solve(pose, end, at.x + r * FastMath.cos(a), at.y + r * FastMath.sin(a), at.z, reach);
+			}
+		});
+	}
+
+	/**
+	 * A spider paddling its eight feet up and down
+	 */
+	private void addSpider(int i, Vector3f at, final float phase)
+	{
+		Vector3f negs[] = {new Vector3f(-1, 1, 0), new Vector3f(-2, 0, 0), new Vector3f(-1.5f, -1, 0)};
+		Vector3f poss[] = {new Vector3f(1, 1, 0), new Vector3f(2, 0, 0), new Vector3f(1.5f, -1, 0)};
+		Joint root = new Joint("Root" + i, null, at, null);
+		final int[] feet = new int[8];
+		Joint body = root;
+		for (int b = 0; b < 4; b ++)
+		{
+			body = new Joint("Body" + i + "_" + b, body, at.add(0, 0, -1 - b), EllipsoidBone.class);
+			Vector3f c = body.getCoordinate();
+			Joint neg = body, pos = body;
+			for (int k = 0; k < 3; k ++)
+			{
+				Class<? extends AbstractBone> boneClass = k == 2 ? ConeBone.class : CylinderBone.class;
+				neg = new Joint("n" + k + i + "_" + b, neg, c.add(negs[k]), boneClass);
+				pos = new Joint("p" + k + i + "_" + b, pos, c.add(poss[k]), boneClass);
+			}
+			feet[2*b] = neg.getIndex();
+			feet[2*b+1] = pos.getIndex();
+		}
+		roots[i] = root;
+
+		// Rigs are already ticked in parallel, the legs needn't be
+		final MultiIKSolver solver = new MultiIKSolver(new IKSolver.Factory()
+		{
+			@Override
+			public IKSolver create() {	return new JacobianSolver();	}
+		}, simulation.getPool());
+		solver.setParallel(false);
+		// Where the feet stand at rest
+		final float[] rest = new float[3 * 8];
+		int rig = simulation.add(root.getPose(), new Simulation.Rig()
+		{
+			@Override
+			public void tick(Pose pose, float time, float dt)
+			{
+				for (int k = 0; k < 8; k ++)
+				{
+					float lift = 0.3f * FastMath.sin(2 * time + phase + k * FastMath.HALF_PI);
+					solver.setTarget(k, rest[3*k], rest[3*k+1] + lift, rest[3*k+2]);
+				}
+				solver.solve();
+			}
+		});
+		// Bound to the simulation's copy of the pose, which is the one ticked
+		Pose pose = simulation.getPose(rig);
+		solver.setEndJoints(pose, feet);
+		float[] pos = pose.getWorldPos();
+		for (int k = 0; k < 8; k ++)
+			System.arraycopy(pos, 3 * pose.slot(feet[k]), rest, 3*k, 3);
+	}
+}
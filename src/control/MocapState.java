@@ -0,0 +1,105 @@
+package control;
+
+import java.io.File;
+import java.io.IOException;
+
+import kinematics.BiovisionReader;
+import skeleton.*;
+
+import com.jme3.app.*;
+import com.jme3.app.state.*;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Plays a motion capture (.bvh) on the skeleton at the capture's frame rate, looping.
+ * Frames are streamed from the file as they come due, never loaded as a whole.
+ */
+public class MocapState extends AbstractAppState
+{
+	// Rest pose height in world units
+	private static final float HEIGHT = 6f;
+	// Frames parsed per update at most, when far behind the rest are skipped
+	private static final int MAX_FRAMES = 100;
+
+	private final Skeleton skeleton;
+	private final File file;
+	private BiovisionReader reader;
+	private Joint root;
+	private float scale;
+	private float clock = 0;
+
+	public MocapState(Skeleton skeleton, File file)
+	{
+		super();
+		this.skeleton = skeleton;
+		this.file = file;
+	}
+
+	/**
+	 * Parse the hierarchy and show its joint tree
+	 */
+	public void load() throws IOException
+	{
+		reader = new BiovisionReader(file);
+		if (reader.getFrameCount() < 1)
+		{
+			reader.close();
+			reader = null;
+			throw new IOException(file + " has no frames");
+		}
+		root = MocapLoader.build(reader, HEIGHT);
+		scale = reader.getScale();
+		skeleton.setRootJoint(root);
+		skeleton.rerender();
+	}
+
+	@Override
+	public void update(float tpf)
+	{
+		if (reader == null)	return;
+		float frameTime = Math.max(reader.getFrameTime(), 1e-3f);
+		clock += tpf;
+		int frames = 0;
+		try {
+			while (clock >= frameTime && frames < MAX_FRAMES)
+			{
+				clock -= frameTime;
+				if (! reader.readFrame(root.getPose()))
+					rewind();
+				frames ++;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			reader = null;
+			return;
+		}
+		if (frames == MAX_FRAMES)
+			clock = 0;
+		if (frames > 0)
+			skeleton.rerender();
+	}
+
+	/**
+	 * Back to the first frame, after reporting how fast the capture was parsed
+	 */
+	private void rewind() throws IOException
+	{
+		System.out.println(String.format("%s: %d frames, parsed at %.0f frames/s",
+				file.getName(), reader.getFramesRead(), reader.getFramesPerSecond()));
+		reader.close();
+		reader = new BiovisionReader(file);
+		reader.setScale(scale);
+		reader.readFrame(root.getPose());
+	}
+
+	@Override
+	public void cleanup()
+	{
+		super.cleanup();
+		if (reader == null)	return;
+		try {
+			reader.close();
+		} catch (IOException e) { e.printStackTrace(); }
+		reader = null;
+	}
+}
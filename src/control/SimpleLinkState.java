@@ -1,5 +1,8 @@
 package control;
 
+import java.io.File;
+import java.io.IOException;
+
 import skeleton.*;
 import skeleton.Skeleton.Mode;
 import utils.Util;
@@ -11,7 +14,6 @@ import com.jme3.input.controls.*;
 import com.jme3.math.Vector3f;
 import com.jme3.renderer.Camera;
 import com.jme3.scene.Node;
-import com.jme3.scene.Spatial;
 
 /**
  * @author Jim Fan  (c) 2014
@@ -22,8 +24,15 @@ public class SimpleLinkState extends AbstractAppState
 	private Skeleton skeleton;
 	private Node rootNode;
 	private Camera cam;
+	private AppStateManager stateManager;
 	// How many joints are we animating
 	private int N;
+	// Rigs in crowd mode
+	private static final int CROWD = 200;
+	// Where the P key records to
+	private static final String RECORDING = "recording.pose";
+	// Motion capture played by the V key. run.sh runs in bin/, which it recreates
+	private static final String MOCAP = "../capture.bvh";
 	
 	public SimpleLinkState(Skeleton skeleton)
 	{
@@ -39,6 +48,7 @@ public class SimpleLinkState extends AbstractAppState
 		InputManager inputManager = app.getInputManager();
 		cam = app.getCamera();
 		rootNode = app.getRootNode();
+		this.stateManager = stateManager;
 		
 		// Add number keys to add chain links. From 2 up to 9
 		String[] mappings = new String[10];
@@ -55,13 +65,31 @@ public class SimpleLinkState extends AbstractAppState
 		
 		inputManager.addMapping("Spider", new KeyTrigger(KeyInput.KEY_M));
 		inputManager.addListener(spiderListener(), "Spider");
+		
+		inputManager.addMapping("Batch", new KeyTrigger(KeyInput.KEY_B));
+		inputManager.addListener(batchListener(), "Batch");
+		
+		inputManager.addMapping("Background", new KeyTrigger(KeyInput.KEY_T));
+		inputManager.addListener(backgroundListener(), "Background");
+		
+		inputManager.addMapping("Crowd", new KeyTrigger(KeyInput.KEY_C));
+		inputManager.addListener(crowdListener(), "Crowd");
+		
+		inputManager.addMapping("Record", new KeyTrigger(KeyInput.KEY_P));
+		inputManager.addListener(recordListener(), "Record");
+		
+		inputManager.addMapping("Play", new KeyTrigger(KeyInput.KEY_O));
+		inputManager.addListener(playListener(), "Play");
+		
+		inputManager.addMapping("Mocap", new KeyTrigger(KeyInput.KEY_V));
+		inputManager.addListener(mocapListener(), "Mocap");
 
 		setView(16);
 		genSkeleton(10);
 	}
 	
 	/**
-	 * Animation: rotate the board camera to the other side
+	 * One IK solve per frame for the latest drag target, then refresh the skeleton
 	 */
 	@Override
 	public void update(float tpf)
@@ -85,6 +113,7 @@ public class SimpleLinkState extends AbstractAppState
 				if (isPressed && name.startsWith("N_"))
 				{
 					int n = Integer.parseInt(name.substring(2));
+					leaveStates();
 					genSkeleton(n);
 				}
 			}
@@ -96,8 +125,7 @@ public class SimpleLinkState extends AbstractAppState
 		if (n < 2) return;
 		this.N = n;
 		
-		clearRoot();
-		
+		// setRootJoint() below detaches the previous skeleton
 		Joint rootJoint = new Joint("Root", null, new Vector3f(-4, 0, 0), null);
 		Joint parent = rootJoint;
 		Joint child = null;
@@ -124,20 +152,6 @@ public class SimpleLinkState extends AbstractAppState
 		skeleton.rerender();
 	}
 	
-	/**
-	 * Clears the root
-	 */
-	private void clearRoot()
-	{
-		// Clear everything
-		for (Spatial s : rootNode.getChildren())
-		{
-			String name = s.getName();
-			if (name.contains("Bone_") || name.startsWith("@"))
-				rootNode.detachChild(s);
-		}
-	}
-
 	/**
 	 * Use space bar to toggle forward/inverse kinematics mode
 	 */
@@ -150,14 +164,12 @@ public class SimpleLinkState extends AbstractAppState
 			{
 				if (isPressed)
 				{
-					if (spiderMode)
-						skeleton.setMode(Mode.Forward);
-					else
+					skeleton.toggleMode();
+					// Regenerate the inverse mode skeleton
+					if (! spiderMode && skeleton.getMode() == Mode.Inverse)
 					{
-    					skeleton.toggleMode();
-    					// Regenerate the inverse mode skeleton
-    					if (skeleton.getMode() == Mode.Inverse)
-    						genSkeleton(N);
+						leaveStates();
+						genSkeleton(N);
 					}
 				}
 			}
@@ -177,17 +189,15 @@ public class SimpleLinkState extends AbstractAppState
 			{
 				if (isPressed)
 				{
-				clearRoot();
-				
-				if (spiderMode)
+				// Spider mode back to the chain, any other mode straight into spider mode
+				boolean wasSpider = spiderMode;
+				leaveStates();
+				if (wasSpider)
 				{
-					spiderMode = false;
 					genSkeleton(N);
-					setView(16);
 					return;
 				}
-				else
-					spiderMode = true;
+				spiderMode = true;
 				
 				Vector3f negs[] = new Vector3f[3];
 				negs[0] = new Vector3f(-1, 1, 0);
@@ -200,6 +210,7 @@ public class SimpleLinkState extends AbstractAppState
 
 				Joint root = new Joint("Root", null, Vector3f.ZERO, null);
 				Joint bodies[] = new Joint[4];
+				Joint feet[] = new Joint[8];
 				bodies[0] = new Joint("Body1", root, new Vector3f(0, 0, -1), EllipsoidBone.class);
 				bodies[1] = new Joint("Body2", bodies[0], new Vector3f(0, 0, -2), EllipsoidBone.class);
 				bodies[2] = new Joint("Body3", bodies[1], new Vector3f(0, 0, -3), EllipsoidBone.class);
@@ -214,10 +225,13 @@ public class SimpleLinkState extends AbstractAppState
 					Joint pos0 = new Joint("p0"+i, bodies[i], bodies[i].getCoordinate().add(poss[0]), CylinderBone.class);
 					Joint pos1 = new Joint("p1"+i, pos0, bodies[i].getCoordinate().add(poss[1]), CylinderBone.class);
 					Joint pos2 = new Joint("p2"+i, pos1, bodies[i].getCoordinate().add(poss[2]), ConeBone.class);
+					feet[2*i] = neg2;
+					feet[2*i+1] = pos2;
 				}
 				
 				skeleton.setRootJoint(root);
-				skeleton.setEndJoint(null);
+				// Drag any foot, the body follows, the other feet hold their place
+				skeleton.setEndJoints(feet);
 				skeleton.rerender();
 
 				setView(5);
@@ -226,6 +240,166 @@ public class SimpleLinkState extends AbstractAppState
 		};
 	}
 	
+	/**
+	 * Toggle batched rendering, for large skeletons
+	 */
+	private InputListener batchListener()
+	{
+		return new ActionListener()
+		{
+			@Override
+			public void onAction(String name, boolean isPressed, float tpf)
+			{
+				if (isPressed)
+					skeleton.setBatched(! skeleton.isBatched());
+			}
+		};
+	}
+	
+	/**
+	 * Toggle solving inverse kinematics on a background thread
+	 */
+	private InputListener backgroundListener()
+	{
+		return new ActionListener()
+		{
+			@Override
+			public void onAction(String name, boolean isPressed, float tpf)
+			{
+				if (isPressed)
+					skeleton.setBackgroundSolving(! skeleton.isBackgroundSolving());
+			}
+		};
+	}
+	
+	/**
+	 * Toggle crowd mode: hundreds of chains and spiders simulated concurrently
+	 */
+	private CrowdState crowd = null;
+	private InputListener crowdListener()
+	{
+		return new ActionListener()
+		{
+			@Override
+			public void onAction(String name, boolean isPressed, float tpf)
+			{
+				if (! isPressed)	return;
+				if (crowd == null)
+				{
+					leaveStates();
+					skeleton.clear();
+					crowd = new CrowdState(CROWD);
+					stateManager.attach(crowd);
+					setView(crowd.getViewDistance());
+				}
+				else
+				{
+					leaveStates();
+					genSkeleton(N);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Start or stop recording the skeleton's poses
+	 */
+	private InputListener recordListener()
+	{
+		return new ActionListener()
+		{
+			@Override
+			public void onAction(String name, boolean isPressed, float tpf)
+			{
+				if (! isPressed)	return;
+				if (skeleton.isRecording())
+					skeleton.stopRecording();
+				else
+					try {
+						skeleton.startRecording(new File(RECORDING));
+					} catch (IOException e) { e.printStackTrace(); }
+			}
+		};
+	}
+	
+	/**
+	 * Start or stop looping the recorded poses
+	 */
+	private InputListener playListener()
+	{
+		return new ActionListener()
+		{
+			@Override
+			public void onAction(String name, boolean isPressed, float tpf)
+			{
+				if (! isPressed)	return;
+				if (skeleton.isPlaying())
+					skeleton.stopPlaying();
+				else
+					try {
+						skeleton.startPlaying(new File(RECORDING));
+					} catch (Exception e) { e.printStackTrace(); }
+			}
+		};
+	}
+	
+	/**
+	 * Toggle playing the motion capture
+	 */
+	private MocapState mocap = null;
+	private InputListener mocapListener()
+	{
+		return new ActionListener()
+		{
+			@Override
+			public void onAction(String name, boolean isPressed, float tpf)
+			{
+				if (! isPressed)	return;
+				if (mocap == null)
+				{
+					boolean left = leaveStates();
+					MocapState state = new MocapState(skeleton, new File(MOCAP));
+					try {
+						state.load();
+					} catch (IOException e) {
+						e.printStackTrace();
+						// The mode left is gone, back to the chain
+						if (left)	genSkeleton(N);
+						return;
+					}
+					mocap = state;
+					stateManager.attach(mocap);
+					setView(12);
+				}
+				else
+				{
+					leaveStates();
+					genSkeleton(N);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Leave spider mode and detach the crowd or the motion capture, whichever is on,
+	 * so modes never overlap. The caller puts up the next skeleton
+	 * @return whether any mode was on
+	 */
+	private boolean leaveStates()
+	{
+		boolean left = spiderMode || crowd != null || mocap != null;
+		spiderMode = false;
+		if (crowd != null)
+			stateManager.detach(crowd);
+		if (mocap != null)
+			stateManager.detach(mocap);
+		crowd = null;
+		mocap = null;
+		if (left)
+			setView(16);
+		return left;
+	}
+	
 	private void setView(float pos)
 	{
 		KinematicsState.camRestoreLocation = new Vector3f(0, 0, pos);
@@ -44,7 +44,7 @@ public class TestLinkState extends AbstractAppState
 		this.stateManager = sapp.getStateManager();
 		
 		Box origin = new Box(0.5f, 0.5f, 0.5f);
-		Material mat = fac.loadPlainPhongMaterial(Magenta, null, 0);
+		Material mat = fac.loadPlainPhongMaterial(Magenta, null, 0).clone();
 		mat.getAdditionalRenderState().setWireframe(true);
 		Geometry box = new Geometry("box", origin);
 		box.setMaterial(mat);
@@ -3,6 +3,8 @@ package skeleton;
 import utils.MaterialFactory;
 
 import com.jme3.math.ColorRGBA;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
 import com.jme3.renderer.queue.RenderQueue.ShadowMode;
 import com.jme3.scene.Geometry;
 
@@ -18,6 +20,12 @@ public abstract class AbstractBone extends Geometry
 	
 	protected float thickness = 0.1f;
 	
+	// Scratch for update(): the joint coordinates and the bone's rotation
+	protected final Vector3f vp = new Vector3f();
+	protected final Vector3f vc = new Vector3f();
+	protected final Vector3f dir = new Vector3f();
+	protected final Quaternion rot = new Quaternion();
+	
 	/**
 	 * Ctor
 	 */
@@ -33,7 +41,8 @@ public abstract class AbstractBone extends Geometry
 	}
 	
 	/**
-	 * Change the mesh when the location of joints are updated
+	 * Place the bone when the location of joints are updated.
+	 * All bones of a shape share one unit mesh, only the transform changes.
 	 * Don't forget to initiate after construction
 	 */
 	public abstract AbstractBone update();
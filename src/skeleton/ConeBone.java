@@ -2,6 +2,7 @@ package skeleton;
 
 import utils.Util;
 import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
 import com.jme3.scene.shape.Dome;
 
 /**
@@ -10,6 +11,8 @@ import com.jme3.scene.shape.Dome;
  */
 public class ConeBone extends AbstractBone
 {
+	// Unit cone (base radius 1, height 1 along Y), shared by all cone bones
+	private static Mesh unitCone;
 
 	public ConeBone(String name, Joint parent, Joint child)
 	{
@@ -19,20 +22,22 @@ public class ConeBone extends AbstractBone
 	@Override
 	public AbstractBone update()
 	{
-		Vector3f vp = jointp.getCoordinate();
-		Vector3f vc = jointc.getCoordinate();
+		if (mesh == null)
+		{
+			if (unitCone == null)
+				unitCone = new Dome(Vector3f.ZERO, 2, 20, 1f, false);
+			setMesh(unitCone);
+		}
 		
-		// Make the cone length of || vp - vc ||
-		float len = vp.subtract(vc).length();
-		Dome cone = 
-				new Dome(Vector3f.ZERO, 2, 20, len, false);
-		setMesh(cone);
+		jointp.getCoordinate(vp);
+		jointc.getCoordinate(vc);
+		dir.set(vc).subtractLocal(vp);
 		
-		// Scale to thickness
-		setLocalScale(this.thickness/len, 1, this.thickness/len);
+		// Stretch the cone to length || vp - vc ||, scale to thickness
+		setLocalScale(this.thickness, dir.length(), this.thickness);
 		
 		// Rotate the cone such that it points in the direction of vp to vc
-		setLocalRotation(Util.qFromTo(Vector3f.UNIT_Y, vc.subtract(vp)));
+		setLocalRotation(Util.qFromTo(Vector3f.UNIT_Y, dir, rot));
 		
 		// Translate the base point of the cone to vp so that the sharp point goes to vc
 		setLocalTranslation(vp);
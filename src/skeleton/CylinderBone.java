@@ -1,8 +1,11 @@
 package skeleton;
 
+import java.util.HashMap;
+
 import utils.Util;
 
 import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
 import com.jme3.scene.shape.Cylinder;
 
 /**
@@ -14,6 +17,9 @@ public class CylinderBone extends AbstractBone
 	// for a spherical cylinder
 	protected int radialSample; 
 	
+	// Unit cylinder (radius 1, height 1) per radial sample count, shared by all bones
+	private static final HashMap<Integer, Mesh> meshes = new HashMap<Integer, Mesh>();
+	
 	public CylinderBone(String name, Joint parent, Joint child)
 	{
 		super("Cylind_" + name, parent, child);
@@ -23,22 +29,33 @@ public class CylinderBone extends AbstractBone
 	@Override
 	public AbstractBone update()
 	{
-		Vector3f vp = jointp.getCoordinate();
-		Vector3f vc = jointc.getCoordinate();
+		if (mesh == null)
+			setMesh(unitCylinder(this.radialSample));
+		
+		jointp.getCoordinate(vp);
+		jointc.getCoordinate(vc);
+		dir.set(vc).subtractLocal(vp);
 		
-		// Make a cylinder of length || vp - vc ||
-		Cylinder cyl = new 
-				Cylinder(5, this.radialSample, this.thickness, vp.subtract(vc).length(), true);
-		setMesh(cyl);
+		// Stretch the unit cylinder to length || vp - vc ||
+		setLocalScale(this.thickness, this.thickness, dir.length());
 		
 		// Rotate the cylinder such that it points in the direction of vp to vc
-		setLocalRotation(Util.qFromTo(Vector3f.UNIT_Z, vc.subtract(vp)));
+		setLocalRotation(Util.qFromTo(Vector3f.UNIT_Z, dir, rot));
 		
 		// Translate the cylinder center to the midpoint of vp and vc
-		setLocalTranslation(vp.add(vc).divide(2f));
+		setLocalTranslation(vp.addLocal(vc).multLocal(0.5f));
 		
 		return this;
 	}
 	
-	
+	private static Mesh unitCylinder(int radialSample)
+	{
+		Mesh cyl = meshes.get(radialSample);
+		if (cyl == null)
+		{
+			cyl = new Cylinder(5, radialSample, 1f, 1f, true);
+			meshes.put(radialSample, cyl);
+		}
+		return cyl;
+	}
 }
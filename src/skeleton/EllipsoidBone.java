@@ -3,6 +3,7 @@ package skeleton;
 import utils.Util;
 
 import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
 import com.jme3.scene.shape.Sphere;
 
 /**
@@ -11,6 +12,8 @@ import com.jme3.scene.shape.Sphere;
  */
 public class EllipsoidBone extends AbstractBone
 {
+	// Unit sphere, shared by all ellipsoid bones
+	private static Mesh unitSphere;
 
 	public EllipsoidBone(String name, Joint parent, Joint child)
 	{
@@ -20,23 +23,25 @@ public class EllipsoidBone extends AbstractBone
 	@Override
 	public AbstractBone update()
 	{
-		Vector3f vp = jointp.getCoordinate();
-		Vector3f vc = jointc.getCoordinate();
+		if (mesh == null)
+		{
+			if (unitSphere == null)
+				unitSphere = new Sphere(30, 30, 1f);
+			setMesh(unitSphere);
+		}
 		
-		// Make the cone length of || vp - vc ||
-		float r = vp.subtract(vc).length()/2;
-		Sphere ellip = 
-				new Sphere(30, 30, r);
-		setMesh(ellip);
+		jointp.getCoordinate(vp);
+		jointc.getCoordinate(vc);
+		dir.set(vc).subtractLocal(vp);
 		
-		// Scale to thickness
-		setLocalScale(this.thickness/r, 1, this.thickness/r);
+		// Stretch the unit sphere to length || vp - vc ||, scale to thickness
+		setLocalScale(this.thickness, dir.length()/2, this.thickness);
 		
-		// Rotate the cone such that it points in the direction of vp to vc
-		setLocalRotation(Util.qFromTo(Vector3f.UNIT_Y, vc.subtract(vp)));
+		// Rotate the ellipsoid such that it points in the direction of vp to vc
+		setLocalRotation(Util.qFromTo(Vector3f.UNIT_Y, dir, rot));
 		
 		// Translate the center of the ellipsoid to the midpoint between vp and vc
-		setLocalTranslation(vp.add(vc).divide(2f));
+		setLocalTranslation(vp.addLocal(vc).multLocal(0.5f));
 		
 		return this;
 	}
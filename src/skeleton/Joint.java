@@ -2,11 +2,10 @@ package skeleton;
 
 import java.util.*;
 
-import org.ejml.simple.SimpleMatrix;
-
-import utils.*;
+import kinematics.Pose;
 
 import com.jme3.math.*;
+import com.jme3.scene.BatchNode;
 import com.jme3.scene.Node;
 
 /**
@@ -18,17 +17,20 @@ public class Joint implements Iterable<Joint>
 {
 	private String name;
 	private Joint parent;
-	private HashMap<String, Joint> children;
+	// Children in the order they were added, leaves share the empty array
+	private Joint[] children = NO_CHILDREN;
+	private int numChildren = 0;
+	private static final Joint[] NO_CHILDREN = new Joint[0];
 	// Mesh bone with its parent
 	private AbstractBone bone;
 	// A sphere at the joint
 	private JointSphere jsphere;
 	
-	// The absolute coordinate of the joint
-	private Vector3f absoluteTrans;
-	// Relative coordinate w.r.t. parent
-	private Vector3f relativeTrans = Vector3f.ZERO;
-	private Matrix3f relativeRot = Matrix3f.IDENTITY.clone();
+	// Coordinates and rotations live in the flat pose store shared by the whole tree
+	private final Pose pose;
+	private final int index;
+	// Every joint of the tree by name, shared like the pose
+	private final JointTable table;
 	
 	/**
 	 * Ctor: inflection on AbstractBone class
@@ -39,8 +41,11 @@ public class Joint implements Iterable<Joint>
 	{
 		this.name = name;
 		this.parent = parent;
-		this.absoluteTrans = absoluteCoord;
-		this.children = new HashMap<String, Joint>();
+		this.pose = isRoot() ? new Pose() : parent.pose;
+		this.index = pose.add(isRoot() ? -1 : parent.index,
+				absoluteCoord.x, absoluteCoord.y, absoluteCoord.z);
+		this.table = isRoot() ? new JointTable() : parent.table;
+		table.add(this);
 		
 		// If not root, we add the bone and its parent
 		if (! isRoot())
@@ -53,7 +58,6 @@ public class Joint implements Iterable<Joint>
     		} catch (Exception e) { e.printStackTrace(); }
 
     		parent.addChild(this);
-    		this.relativeTrans = absoluteCoord.subtract(parent.absoluteTrans);
 		}
 		
 		// We add a sphere at each joint
@@ -63,100 +67,44 @@ public class Joint implements Iterable<Joint>
 	}
 	
 	/**
-	 * Recursively render the skeleton rooted at 'this'
+	 * Recursively attach the bones and spheres of the skeleton rooted at 'this'
+	 * Only done once, later frames just update()
 	 */
-	public void render(Node rootNode)
+	public void attach(Node node)
 	{
-		if (! isRoot())
-			rootNode.attachChild(bone.update());
+		if (bone != null)
+			node.attachChild(bone.update());
 		
-		rootNode.attachChild(jsphere.update());
+		node.attachChild(jsphere.update());
 		
-		for (Joint child : this)
-			child.render(rootNode);
+		for (int k = 0; k < numChildren; k ++)
+			children[k].attach(node);
 	}
 	
 	/**
-	 * Forward Kinematics
-	 * Apply a rotation to the joint. 
-	 * Recursively update all the absolute coordinates in the children
-	 * Relative coordinates shouldn't change
+	 * Recursively push the new transforms to the bones and spheres rooted at 'this'
 	 */
-	public void rotate(Quaternion yrp)
+	public void update()
 	{
-		relativeRot = relativeRot.mult(yrp.toRotationMatrix());
-
-		// Update all the absolute coordinates
-		for (Joint child : this)
-			child.update();
-	}
-	
-	private void update()
-	{
-		Joint p = this.parent;
-		absoluteTrans = relativeTrans;
-		// Cumulatively apply the relative coordinate systems until Root
-		while (true)
-		{
-			absoluteTrans = p.relativeRot.mult(absoluteTrans);
-//			absoluteTrans = new Quaternion().fromAngles(p.eulerAngles).toRotationMatrix().mult(absoluteTrans);
-			absoluteTrans.addLocal(p.relativeTrans);
-			if (p.isRoot())
-			{
-				absoluteTrans.addLocal(p.absoluteTrans);
-				break;
-			}
-			p = p.parent;
-		}
-		// Recursive call
-		for (Joint child : this)
-			child.update();
+		if (bone != null)
+			bone.update();
+		
+		jsphere.update();
+		
+		for (int k = 0; k < numChildren; k ++)
+			children[k].update();
 	}
 	
 	/**
-	 * Inverse Kinematics: 1 DoF
+	 * Forward Kinematics
+	 * Apply a rotation to the joint. 
+	 * Only the subtree is marked dirty, the absolute coordinates of the children
+	 * are recomputed lazily from their parents' cached transforms
+	 * Relative coordinates shouldn't change
 	 */
-	public void IK1Dof(Vector3f target, float totalLen)
+	public void rotate(Quaternion yrp)
 	{
-		ArrayList<Joint> ances = new ArrayList<Joint>();
-		Joint pr = this.parent;
-		Vector3f s = this.absoluteTrans;
-		// the last one must be root
-		while (pr != null)
-		{
-			ances.add(pr);
-			pr = pr.parent;
-		}
-		
-		Joint root = ances.get(ances.size() - 1);
-		
-		float targetDist = target.subtract(root.absoluteTrans).length();
-		if (targetDist > totalLen)
-			target = target.subtract(root.absoluteTrans).mult(totalLen / targetDist).add(root.absoluteTrans);
-		
-		SimpleMatrix jacobian = new SimpleMatrix(3, ances.size());
-
-		for (int i = 0; i < ances.size(); i ++)
-		{
-			Vector3f v = Vector3f.UNIT_Z.cross(s.subtract(ances.get(i).absoluteTrans));
-			jacobian.set(0, i, v.x);
-			jacobian.set(1, i, v.y);
-			jacobian.set(2, i, v.z);
-		}
-		
-		SimpleMatrix id = SimpleMatrix.identity(ances.size());
-		SimpleMatrix deltaTheta = jacobian.transpose()
-														.mult(jacobian)
-														.plus(id.scale(0.05))
-														.invert()
-														.mult(jacobian.transpose())
-														.mult(Util.toMat(target.subtract(s)));
-		for (int i = 0; i < ances.size(); i ++)
-		{
-			Joint j = ances.get(i);
-			j.rotate(new Quaternion().fromAngleAxis((float) deltaTheta.get(i), Vector3f.UNIT_Z));
-		}	
-		
+		pose.rotate(index, yrp.getX(), yrp.getY(), yrp.getZ(), yrp.getW());
 	}
 	
 	/**
@@ -170,41 +118,134 @@ public class Joint implements Iterable<Joint>
 	 */
 	private void addChild(Joint child) 
 	{ 
-		this.children.put(child.getName(), child);
+		if (numChildren == children.length)
+			children = Arrays.copyOf(children, Math.max(2 * numChildren, 1));
+		children[numChildren ++] = child;
 	}
 	
 	/**
-	 * Get the joint name. Will be used as hash key
+	 * Get the joint name. Will be used as hash key, unique within the tree
 	 */
 	public String getName() {	return this.name;	}
 	
 	/**
 	 * Get the absolute coordinate of this joint (origin) in world space
+	 * Lazily refreshed if an ancestor has been rotated
 	 */
-	public Vector3f getCoordinate() {	return this.absoluteTrans;	}
+	public Vector3f getCoordinate()
+	{
+		float[] pos = pose.getWorldPos();
+		int s = pose.slot(index);
+		return new Vector3f(pos[3*s], pos[3*s+1], pos[3*s+2]);
+	}
 	
 	/**
-	 * Get the bone between 'this' and its parent
+	 * Same as above, written into 'store' without allocating
+	 */
+	public Vector3f getCoordinate(Vector3f store)
+	{
+		float[] pos = pose.getWorldPos();
+		int s = pose.slot(index);
+		return store.set(pos[3*s], pos[3*s+1], pos[3*s+2]);
+	}
+	
+	/**
+	 * The flat pose store shared by all joints of this tree
+	 */
+	public Pose getPose() {	return this.pose;	}
+	
+	/**
+	 * Id of this joint in the pose store
+	 */
+	public int getIndex() {	return this.index;	}
+	
+	/**
+	 * Get the bone between 'this' and its parent, null for the root
+	 * or if the joint was built without a bone class
 	 */
 	public AbstractBone getBone() {	return this.bone;	}
 	
 	public JointSphere getJointSphere() {	return this.jsphere;	}
 	
+	/**
+	 * All joints of this tree, by id or by name
+	 */
+	public JointTable getTable() {	return this.table;	}
+	
+	/**
+	 * Any joint of this tree by name, in O(1). null if there's none
+	 */
+	public Joint find(String name) {	return table.get(name);	}
+	
 	/**
 	 * How many children joints
 	 */
-	public int getNumChild() { return this.children.size(); }
+	public int getNumChild() { return this.numChildren; }
 	
-	public Joint getChild(String name) {	return this.children.get(name);	}
+	/**
+	 * The k-th child, in the order they were added
+	 */
+	public Joint getChild(int k) {	return this.children[k];	}
+	
+	public Joint getChild(String name)
+	{
+		for (int k = 0; k < numChildren; k ++)
+			if (children[k].name.equals(name))	return children[k];
+		return null;
+	}
+	
+	/**
+	 * Remove a child and its subtree: from the tree walk, the name table and the scene.
+	 * Their slots stay in the pose, which has no removal, and are still recorded
+	 */
+	public void removeChild(String name)
+	{
+		for (int k = 0; k < numChildren; k ++)
+			if (children[k].name.equals(name))
+			{
+				Node node = children[k].jsphere.getParent();
+				children[k].unregister();
+				System.arraycopy(children, k + 1, children, k, numChildren - k - 1);
+				children[-- numChildren] = null;
+				// A batch still holds the removed geometry until it's rebuilt
+				if (node instanceof BatchNode)
+					((BatchNode) node).batch();
+				return;
+			}
+	}
 	
-	public void removeChild(String name) { this.children.remove(name); }
+	private void unregister()
+	{
+		table.remove(this);
+		if (bone != null)
+			bone.removeFromParent();
+		jsphere.removeFromParent();
+		for (int k = 0; k < numChildren; k ++)
+			children[k].unregister();
+	}
 
 	/**
-	 * Iterate through the children joints
+	 * Iterate through the children joints, in the order they were added
 	 */
 	@Override
 	public Iterator<Joint> iterator()
 	{
-		return this.children.values().iterator();
+		return new Iterator<Joint>()
+		{
+			private int k = 0;
+			
+			@Override
+			public boolean hasNext() {	return k < numChildren;	}
+			
+			@Override
+			public Joint next()
+			{
+				if (k >= numChildren)	throw new NoSuchElementException();
+				return children[k ++];
+			}
+			
+			@Override
+			public void remove() {	throw new UnsupportedOperationException();	}
+		};
 	}
 }
@@ -1,10 +1,15 @@
 package skeleton;
 
+import java.util.HashMap;
+
 import utils.MaterialFactory;
 
+import com.jme3.material.Material;
 import com.jme3.math.ColorRGBA;
+import com.jme3.math.Vector3f;
 import com.jme3.renderer.queue.RenderQueue.ShadowMode;
 import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
 import com.jme3.scene.shape.Sphere;
 
 /**
@@ -16,6 +21,12 @@ public class JointSphere extends Geometry
 	private Joint joint;
 	private float size;
 	private static final MaterialFactory factory = MaterialFactory.getInstance();
+	// One sphere mesh per size, shared by all joint spheres
+	private static final HashMap<Float, Mesh> meshes = new HashMap<Float, Mesh>();
+	// Shared materials: default root and joint colors, and the selection highlight
+	private static Material rootMaterial, jointMaterial, highlight;
+	// Scratch for update()
+	private final Vector3f coord = new Vector3f();
 	
 	/**
 	 * JointSphere is selectable by mouse
@@ -26,6 +37,7 @@ public class JointSphere extends Geometry
 		super("@" + joint.getName());
 		this.joint = joint;
 		this.size = size;
+		setMesh(sphere(size));
 		// default material
 		setColor(null);
 		setShadowMode(ShadowMode.CastAndReceive);
@@ -42,15 +54,45 @@ public class JointSphere extends Geometry
 	 */
 	public void setColor(ColorRGBA color)
 	{
-		setMaterial(factory.loadPlainPhongMaterial(
-						color != null ? color :
-					   joint.isRoot() ? ColorRGBA.Orange : 
-						   					  ColorRGBA.Magenta, 
-						ColorRGBA.White, 20f));
+		if (color == null)
+			setMaterial(defaultMaterial());
+		else
+			setMaterial(factory.loadPlainPhongMaterial(color, ColorRGBA.White, 20f));
+	}
+	
+	/**
+	 * Highlight a selected joint, or restore its default color.
+	 * Swaps between shared materials, nothing is allocated
+	 */
+	public void setHighlighted(boolean highlighted)
+	{
+		if (highlighted)
+		{
+			if (highlight == null)
+				highlight = factory.loadPlainPhongMaterial(ColorRGBA.Green, ColorRGBA.White, 20f);
+			setMaterial(highlight);
+		}
+		else
+			setMaterial(defaultMaterial());
+	}
+	
+	private Material defaultMaterial()
+	{
+		if (joint.isRoot())
+		{
+			if (rootMaterial == null)
+				rootMaterial = factory.loadPlainPhongMaterial(ColorRGBA.Orange, ColorRGBA.White, 20f);
+			return rootMaterial;
+		}
+		if (jointMaterial == null)
+			jointMaterial = factory.loadPlainPhongMaterial(ColorRGBA.Magenta, ColorRGBA.White, 20f);
+		return jointMaterial;
 	}
 	
 	public Joint getJoint()	{	return this.joint;	}
 	
+	public float getSize() {	return this.size;	}
+	
 	/**
 	 * Set size (radius) of the sphere at the joint
 	 * Default = 0.3
@@ -58,14 +100,27 @@ public class JointSphere extends Geometry
 	public void setSize(float size)
 	{	
 		this.size = size;
+		setMesh(sphere(size));
 		update();
 	}
 	
+	/**
+	 * Follow the joint. Only the translation changes, the mesh is shared
+	 */
 	public JointSphere update()
 	{
-		Sphere s = new Sphere(30, 30, this.size);
-		setMesh(s);
-		setLocalTranslation(joint.getCoordinate());
+		setLocalTranslation(joint.getCoordinate(coord));
 		return this;
 	}
+	
+	private static Mesh sphere(float size)
+	{
+		Mesh s = meshes.get(size);
+		if (s == null)
+		{
+			s = new Sphere(30, 30, size);
+			meshes.put(size, s);
+		}
+		return s;
+	}
 }
@@ -0,0 +1,142 @@
+package skeleton;
+
+import java.util.Arrays;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * All joints of one tree by id, and by name through an open addressing hash table:
+ * any joint of the tree is found in O(1), not just the children of one joint.
+ * Shared by all joints of the tree, like their pose.
+ *
+ * Names should be unique within a tree. With duplicates, the first one added that's
+ * still in the tree is found.
+ */
+public class JointTable
+{
+	// Joint by id
+	private Joint[] joints = new Joint[16];
+	private int size = 0;
+	// Id + 1 of the joint hashed to each slot, 0 = empty. Power of two, at most half full
+	private int[] slots = new int[32];
+	private int count = 0;
+	// Joints not in the name table, a joint added before them took their name
+	private int shadowed = 0;
+
+	/**
+	 * Register a joint, done by its constructor
+	 */
+	void add(Joint joint)
+	{
+		int id = joint.getIndex();
+		if (id >= joints.length)
+			joints = Arrays.copyOf(joints, Math.max(2 * joints.length, id + 1));
+		joints[id] = joint;
+		size = Math.max(size, id + 1);
+		if (find(joint.getName()) < 0)
+			insert(id);
+		else
+			shadowed ++;
+	}
+
+	/**
+	 * Unregister a joint, it's no longer found by name or id
+	 */
+	void remove(Joint joint)
+	{
+		int id = joint.getIndex();
+		int s = slotOf(joint.getName());
+		if (slots[s] != id + 1)
+		{
+			joints[id] = null;
+			shadowed --;
+			return;
+		}
+		// Backward shift: pull later entries of the probe run up into the gap
+		int mask = slots.length - 1, gap = s;
+		for (int i = (s + 1) & mask; slots[i] != 0; i = (i + 1) & mask)
+		{
+			int home = hash(joints[slots[i] - 1].getName()) & mask;
+			// Entry i can move unless its home lies cyclically within (gap, i]
+			if (((i - home) & mask) >= ((i - gap) & mask))
+			{
+				slots[gap] = slots[i];
+				gap = i;
+			}
+		}
+		slots[gap] = 0;
+		count --;
+		// Last, probing above reads the names of joints in the table
+		joints[id] = null;
+		// The next joint of the same name, if there's one, takes over
+		if (shadowed == 0)	return;
+		for (int k = 0; k < size; k ++)
+			if (joints[k] != null && joints[k].getName().equals(joint.getName()))
+			{
+				insert(k);
+				shadowed --;
+				return;
+			}
+	}
+
+	/**
+	 * The joint named 'name', null if there's none
+	 */
+	public Joint get(String name)
+	{
+		int id = find(name);
+		return id < 0 ? null : joints[id];
+	}
+
+	/**
+	 * The joint with pose id 'id', null if it was removed
+	 */
+	public Joint get(int id) {	return this.joints[id];	}
+
+	/**
+	 * One past the highest id
+	 */
+	public int size() {	return this.size;	}
+
+	/**
+	 * Id of the joint named 'name', -1 if there's none
+	 */
+	private int find(String name)
+	{
+		return slots[slotOf(name)] - 1;
+	}
+
+	/**
+	 * Slot holding 'name', or the empty slot where it would go
+	 */
+	private int slotOf(String name)
+	{
+		int mask = slots.length - 1;
+		int s = hash(name) & mask;
+		while (slots[s] != 0 && ! joints[slots[s] - 1].getName().equals(name))
+			s = (s + 1) & mask;
+		return s;
+	}
+
+	private void insert(int id)
+	{
+		if (2 * (count + 1) > slots.length)
+		{
+			int[] old = slots;
+			slots = new int[2 * old.length];
+			for (int entry : old)
+				if (entry != 0)
+					slots[slotOf(joints[entry - 1].getName())] = entry;
+		}
+		slots[slotOf(joints[id].getName())] = id + 1;
+		count ++;
+	}
+
+	/**
+	 * Spread the string hash over the low bits used for the slot
+	 */
+	private static int hash(String name)
+	{
+		int h = name.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
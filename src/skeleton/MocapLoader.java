@@ -0,0 +1,54 @@
+package skeleton;
+
+import kinematics.BiovisionReader;
+
+import com.jme3.math.Vector3f;
+
+/**
+ * @author Jim Fan  (c) 2014
+ * Builds the joint tree of a motion capture from its hierarchy.
+ * Joint ids match the reader's, so its frames stream straight into the tree's pose.
+ */
+public class MocapLoader
+{
+	/**
+	 * @param height the capture is scaled to about this tall in its rest pose
+	 * @return the root joint
+	 */
+	public static Joint build(BiovisionReader reader, float height)
+	{
+		int n = reader.getJointCount();
+		float[] rest = new float[3 * n];
+		boolean[] hasChild = new boolean[n];
+		reader.setScale(1);
+		float lo = Float.MAX_VALUE, hi = -Float.MAX_VALUE;
+		for (int id = 0; id < n; id ++)
+		{
+			reader.getRestPosition(id, rest, 3 * id);
+			lo = Math.min(lo, rest[3*id+1]);
+			hi = Math.max(hi, rest[3*id+1]);
+			if (reader.getParent(id) >= 0)
+				hasChild[reader.getParent(id)] = true;
+		}
+		if (hi > lo)
+			reader.setScale(height / (hi - lo));
+
+		Joint[] joints = new Joint[n];
+		for (int id = 0; id < n; id ++)
+		{
+			reader.getRestPosition(id, rest, 3 * id);
+			Vector3f at = new Vector3f(rest[3*id], rest[3*id+1], rest[3*id+2]);
+			int parent = reader.getParent(id);
+			Class<? extends AbstractBone> boneClass = null;
+			if (parent >= 0)
+			{
+				Vector3f from = joints[parent].getCoordinate();
+				// Joints on top of their parent, common in captures, get no bone
+				if (from.distanceSquared(at) > 1e-8f)
+					boneClass = hasChild[id] ? CylinderBone.class : ConeBone.class;
+			}
+			joints[id] = new Joint(reader.getName(id), parent < 0 ? null : joints[parent], at, boneClass);
+		}
+		return joints[0];
+	}
+}
@@ -1,18 +1,20 @@
 package skeleton;
 
+import java.io.File;
+import java.io.IOException;
+
+import kinematics.*;
 import utils.MaterialFactory;
 
 import com.jme3.app.SimpleApplication;
-import com.jme3.collision.*;
 import com.jme3.input.*;
 import com.jme3.input.controls.*;
-import com.jme3.material.Material;
-import com.jme3.material.RenderState.BlendMode;
 import com.jme3.math.*;
 import com.jme3.renderer.Camera;
+import com.jme3.renderer.queue.RenderQueue.ShadowMode;
+import com.jme3.scene.BatchNode;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Node;
-import com.jme3.scene.shape.Quad;
 
 import control.ComboListener;
 
@@ -25,17 +27,53 @@ public class Skeleton
 {
 	private Joint rootJoint;
 	private Node rootNode;
+	// Bones and spheres of the current joint tree, built once per tree
+	private Node node;
+	// Draw all bones and spheres sharing a material as one batched geometry
+	private boolean batched = false;
+	// Highlights the selected joint when batched: batched materials can't be swapped
+	private Geometry marker;
+	// Picking: bounding volume hierarchy of the current tree's joint spheres
+	private SphereTree pickTree;
 	private InputManager inputManager;
 	private Camera cam;
 	
 	private Joint selected; // one at a time
-	private volatile boolean changed = true; // only re-render when something changed
+	private boolean changed = true; // only re-render when something changed
 	
 	private Joint endJoint; // The IK joint
 	private float totalLen; // total length of the chain to prevent shaking
+	// Reusable IK workspace, no allocation per drag event
+	private IKSolver ikSolver = new JacobianSolver();
+	
+	// Branching skeletons: many end joints, each dragged to its own target
+	private Joint[] endJoints;
+	// Legs one after the other: the spider's are too short to gain from threads
+	private final MultiIKSolver multiSolver = new MultiIKSolver(
+		new IKSolver.Factory()
+		{
+			@Override
+			public IKSolver create() {	return new JacobianSolver();	}
+		});
+	
+	// IK targets lie where the mouse ray meets this plane, z = 0 by default
+	private final Plane dragPlane = new Plane(new Vector3f(Vector3f.UNIT_Z), 0);
+	// Drag scratch: ray origin, direction and target
+	private final Vector3f rayOrigin = new Vector3f(), rayDir = new Vector3f(), dragTarget = new Vector3f();
+	// Drag events only record the latest target, it's solved once per frame in render()
+	private boolean targetPending = false;
+	
+	// Solve on a worker thread, the render thread shows its latest completed pose
+	private boolean background = false;
+	// Started on the first drag, stopped whenever the tree, end joints or mode change
+	private SolverThread solverThread;
 	
-	// Collide with the casting ray to get the mouse's world coord
-	private Geometry selectPane;
+	// Records every rendered frame while not null
+	private PoseRecorder recorder;
+	private long recordStart;
+	// Drives the pose while not null, looping
+	private PoseClip clip;
+	private long playStart;
 	
 	public static enum Mode {Forward, Inverse};
 	private Mode mode;
@@ -46,7 +84,7 @@ public class Skeleton
 			TRIGGER_DESELECT = new MouseButtonTrigger(MouseInput.BUTTON_RIGHT),
 		// FORWARD KINEMATICS
 			// move within XY, YZ or XZ plane
-			TRIGGER_XY = new KeyTrigger(KeyInput.KEY_J),
+			TRIGGER_XY = new KeyTrigger(KeyInput.KEY_J),
 			TRIGGER_YZ = new KeyTrigger(KeyInput.KEY_K),
 			TRIGGER_XZ = new KeyTrigger(KeyInput.KEY_L);
 
@@ -68,7 +106,7 @@ public class Skeleton
 		this.rootNode = app.getRootNode();
 		this.inputManager = app.getInputManager();
 		this.cam = app.getCamera();
-		this.rootJoint = rootJoint;
+		setRootJoint(rootJoint);
 		
 		inputManager.addMapping(MAP_SELECT, TRIGGER_SELECT);
 		inputManager.addMapping(MAP_DESELECT, TRIGGER_DESELECT);
@@ -87,16 +125,6 @@ public class Skeleton
 		inputManager.addListener(IKMouseDragListener(), MAP_DRAG);
 //		inputManager.addListener(mouseDirListener(), MAP_DIR_X_NEG, MAP_DIR_X_POS, MAP_DIR_Y_NEG, MAP_DIR_Y_POS);
 
-		this.selectPane = new Geometry("SelectPane", new Quad(100, 100));
-		Material mat = MaterialFactory.getInstance().loadPlain(ColorRGBA.White);
-		mat.getAdditionalRenderState().setBlendMode(BlendMode.Alpha);
-    	mat.getAdditionalRenderState().setAlphaTest(true);
-    	// above alpha will be rendered
-    	mat.getAdditionalRenderState().setAlphaFallOff(1f);
-		selectPane.setMaterial(mat);
-		selectPane.move(new Vector3f(-50, -50, 0));
-		rootNode.attachChild(selectPane);
-		
 		this.mode = Mode.Forward;
 	}
 	
@@ -105,20 +133,246 @@ public class Skeleton
 		this(app, null);
 	}
 	
-	public void setRootJoint(Joint rootJoint) {	this.rootJoint = rootJoint; }
+	/**
+	 * Replace the joint tree. Its scene graph is built here, once.
+	 * A new tree has no end joints until they're set, the old ones aren't in its pose
+	 */
+	public void setRootJoint(Joint rootJoint)
+	{
+		if (rootJoint != this.rootJoint)
+		{
+			endJoint = null;
+			endJoints = null;
+			totalLen = 0;
+		}
+		clear();
+		this.rootJoint = rootJoint;
+		if (rootJoint != null)
+		{
+			String name = "Skeleton_" + rootJoint.getName();
+			node = batched ? new BatchNode(name) : new Node(name);
+			rootJoint.attach(node);
+			
+			Pose pose = rootJoint.getPose();
+			float[] radius = new float[pose.size()];
+			for (int id = 0; id < radius.length; id ++)
+			{
+				// Removed joints keep their pose slot, but can't be picked
+				Joint joint = rootJoint.getTable().get(id);
+				radius[id] = joint == null ? 0 : joint.getJointSphere().getSize();
+			}
+			pickTree = new SphereTree(pose, radius);
+			if (batched)
+			{
+				node.setShadowMode(ShadowMode.CastAndReceive);
+				((BatchNode) node).batch();
+			}
+			rootNode.attachChild(node);
+		}
+	}
+	
+	/**
+	 * Batched mode for large skeletons: bones and spheres are merged by material,
+	 * so the draw calls stay constant however many joints there are.
+	 * Moving joints rewrites the merged vertices on the CPU instead.
+	 * Rebuilds the current joint tree
+	 */
+	public void setBatched(boolean batched)
+	{
+		if (this.batched == batched)	return;
+		deselect(); // the highlight depends on the mode
+		this.batched = batched;
+		setRootJoint(rootJoint);
+	}
+	
+	public boolean isBatched() {	return this.batched;	}
+	
+	/**
+	 * Remove the joint tree from the scene: a single detach
+	 */
+	public void clear()
+	{
+		stopRecording();
+		stopPlaying();
+		stopSolverThread();
+		deselect();
+		if (node != null)
+			node.removeFromParent();
+		node = null;
+		rootJoint = null;
+		pickTree = null;
+		targetPending = false;
+	}
+	
+	/**
+	 * Any joint of the current tree by name, in O(1). null if there's none
+	 */
+	public Joint getJoint(String name)
+	{
+		return rootJoint == null ? null : rootJoint.find(name);
+	}
+	
+	/**
+	 * Select a joint for forward kinematics and highlight it
+	 */
+	private void select(Joint joint)
+	{
+		deselect();
+		selected = joint;
+		if (! batched)
+			joint.getJointSphere().setHighlighted(true);
+		else
+		{
+			if (marker == null)
+			{
+				marker = new Geometry("SelectMarker");
+				marker.setMaterial(MaterialFactory.getInstance()
+						.loadPlainPhongMaterial(ColorRGBA.Green, ColorRGBA.White, 20f));
+				marker.setLocalScale(1.2f); // just around the joint's sphere
+			}
+			marker.setMesh(joint.getJointSphere().getMesh());
+			marker.setLocalTranslation(joint.getCoordinate());
+			rootNode.attachChild(marker);
+		}
+	}
+	
+	private void deselect()
+	{
+		if (selected == null)	return;
+		// Restore to default color
+		if (! batched)
+			selected.getJointSphere().setHighlighted(false);
+		else
+			marker.removeFromParent();
+		selected = null;
+	}
 	
 	public void setEndJoint(Joint endJoint)
 	{
+		stopSolverThread();
 		this.endJoint = endJoint;
+		this.endJoints = null;
+	}
+	
+	/**
+	 * Several end joints on one tree, e.g. the spider's feet.
+	 * Dragging moves the end joint closest to the mouse, the others hold their place.
+	 */
+	public void setEndJoints(Joint ... endJoints)
+	{
+		stopSolverThread();
+		this.endJoint = null;
+		this.endJoints = endJoints;
+		multiSolver.setEndJoints(endJoints[0].getPose(), endJointIds());
 	}
 	
 	public void setTotalLen(float totalLen)	{	this.totalLen = totalLen;	}
 	
+	/**
+	 * Plane the IK targets are dragged on: points p with normal . p = constant
+	 * @param normal any orientation, needn't be unit length
+	 */
+	public void setDragPlane(Vector3f normal, float constant)
+	{
+		dragPlane.setNormal(normal.normalize());
+		dragPlane.setConstant(constant / normal.length());
+	}
+	
+	public Plane getDragPlane() {	return this.dragPlane;	}
+	
+	/**
+	 * The IK solver, to tune tolerance, iteration count and time budget
+	 */
+	public IKSolver getIKSolver() {	return this.ikSolver;	}
+	
+	/**
+	 * Plug in another IK algorithm, e.g. FABRIKSolver for long chains
+	 */
+	public void setIKSolver(IKSolver ikSolver)
+	{
+		stopSolverThread();
+		this.ikSolver = ikSolver;
+	}
+	
+	/**
+	 * The solver used with several end joints
+	 */
+	public MultiIKSolver getMultiIKSolver() {	return this.multiSolver;	}
+	
+	/**
+	 * Background solving: IK runs on a worker thread against its own copy of the pose,
+	 * the render thread shows the last completed solve and never waits for it.
+	 * Forward kinematics stays on the render thread
+	 */
+	public void setBackgroundSolving(boolean background)
+	{
+		stopSolverThread();
+		this.background = background;
+	}
+	
+	public boolean isBackgroundSolving() {	return this.background;	}
+	
+	/**
+	 * Record the pose of every rendered frame to 'file', see PoseRecorder.
+	 * Stops playback, the clip may be the same file, and stops when the joint tree is replaced
+	 */
+	public void startRecording(File file) throws IOException
+	{
+		stopPlaying();
+		stopRecording();
+		if (rootJoint == null)	return;
+		recorder = new PoseRecorder(file, rootJoint.getPose().size());
+		recordStart = System.nanoTime();
+	}
+	
+	public void stopRecording()
+	{
+		if (recorder == null)	return;
+		try {
+			recorder.close();
+		} catch (IOException e) { e.printStackTrace(); }
+		recorder = null;
+	}
+	
+	public boolean isRecording() {	return this.recorder != null;	}
+	
+	/**
+	 * Loop a clip recorded from this joint tree or authored for it, see PoseClip.
+	 * Stops recording, which may be to the same file, and stops when the joint tree is replaced
+	 */
+	public void startPlaying(File file) throws IOException
+	{
+		stopRecording();
+		stopPlaying();
+		if (rootJoint == null)	return;
+		PoseClip clip = new PoseClip(file);
+		if (clip.getJointCount() != rootJoint.getPose().size())
+		{
+			clip.close();
+			throw new IllegalArgumentException("The clip animates " + clip.getJointCount() 
+					+ " joints, the skeleton has " + rootJoint.getPose().size());
+		}
+		this.clip = clip;
+		playStart = System.nanoTime();
+	}
+	
+	public void stopPlaying()
+	{
+		if (clip == null)	return;
+		try {
+			clip.close();
+		} catch (IOException e) { e.printStackTrace(); }
+		clip = null;
+	}
+	
+	public boolean isPlaying() {	return this.clip != null;	}
+	
 	/**
 	 * Forward or inverse kinematics?
 	 */
 	public void toggleMode() 
 	{	
+		stopSolverThread();
 		this.mode =
 				mode == Mode.Forward ? 
 							Mode.Inverse : Mode.Forward;
@@ -126,22 +380,66 @@ public class Skeleton
 	
 	public Mode getMode() {	return this.mode;	}
 	
-	public void setMode(Mode mode) {	this.mode = mode;	}
+	public void setMode(Mode mode)
+	{
+		stopSolverThread();
+		this.mode = mode;
+	}
 	
+	/**
+	 * Once per frame: solve for the latest drag target if there's one,
+	 * then refresh the geometry if anything moved
+	 */
 	public Skeleton render()
 	{
-		if (changed)
+		if (targetPending && rootJoint != null && (endJoint != null || endJoints != null))
 		{
-    		rootJoint.render(rootNode);
+			targetPending = false;
+			if (background)
+			{
+				if (solverThread == null)
+					startSolverThread();
+				solverThread.post(dragTarget.x, dragTarget.y, dragTarget.z);
+			}
+			else
+			{
+				solve(rootJoint.getPose(), dragTarget.x, dragTarget.y, dragTarget.z);
+				changed = true;
+			}
+		}
+		if (solverThread != null)
+		{
+			Pose solved = solverThread.poll();
+			if (solved != null)
+			{
+				rootJoint.getPose().set(solved);
+				changed = true;
+			}
+		}
+		if (clip != null)
+		{
+			float start = clip.getStartTime(), length = clip.getEndTime() - start;
+			float t = (System.nanoTime() - playStart) * 1e-9f;
+			clip.sample(start + (length > 0 ? t % length : 0), rootJoint.getPose());
+			changed = true;
+		}
+		if (changed && rootJoint != null)
+		{
+    		rootJoint.update();
+    		if (batched && selected != null)
+    			marker.setLocalTranslation(selected.getJointSphere().getLocalTranslation());
     		changed = false;
 		}
+		if (recorder != null)
+			recorder.record(rootJoint.getPose(), (System.nanoTime() - recordStart) * 1e-9f);
 		return this;
 	}
 	
 	// Forced render
 	public void rerender()
 	{
-		rootJoint.render(rootNode);
+		if (rootJoint != null)
+			rootJoint.update();
 	}
 	
 	/**
@@ -196,28 +494,17 @@ public class Skeleton
 				if (isPressed)
 				if (name.equals(MAP_SELECT))
 	    		{
-	    			CollisionResults results = new CollisionResults();
+	    			if (pickTree == null)	return;
 	    			Vector2f click2d = inputManager.getCursorPosition();
 	    			Vector3f click3d = cam.getWorldCoordinates(click2d, 0f); // depth 0
 	    			// 1 WU deep into the screen
 	    			Vector3f dir = cam.getWorldCoordinates(click2d, 0.5f).subtractLocal(click3d);
-	    			Ray ray  = new Ray(click3d, dir);
 	    			
-	    			rootNode.collideWith(ray, results);
-	    			for (CollisionResult res : results)
-					{
-	    				Geometry hit = res.getGeometry();
-	    				String hitName = hit.getName();
-	    				// Selectable JointSphere always starts with @
-	    				if (hitName.charAt(0) == '@')
-	    				{
-	    					JointSphere hitJs = (JointSphere) hit;
-	    					deselect();
-	    					selected = hitJs.getJoint();
-	    					hitJs.setColor(ColorRGBA.Green);
-    	    				break;
-	    				}
-					}
+	    			// Analytic ray-sphere tests against the joint spheres only
+	    			int hit = pickTree.pick(click3d.x, click3d.y, click3d.z, dir.x, dir.y, dir.z);
+	    			Joint joint = hit < 0 ? null : rootJoint.getTable().get(hit);
+	    			if (joint != null)
+	    				select(joint);
 	    		}
 				// Right click
 				else if (name.equals(MAP_DESELECT))
@@ -226,21 +513,11 @@ public class Skeleton
 				}
 					
 			}
-			// Helper
-			private void deselect()
-			{
-				if (selected != null)
-				{
-					// Restore to default color
-					selected.getJointSphere().setColor(null);
-					selected = null;
-				}
-			}
 		};
 	}
 
 	/**
-	 * Inverse Kinematics
+	 * Inverse Kinematics: records the drag target
 	 */
 	private InputListener IKMouseDragListener()
 	{
@@ -251,32 +528,112 @@ public class Skeleton
 			{
 				if (mode != Mode.Inverse)	return;
 
-				changed = true;
-				
 				Vector2f click2d = inputManager.getCursorPosition();
-    			Vector3f click3d = cam.getWorldCoordinates(click2d, 0f); // depth 0
+    			cam.getWorldCoordinates(click2d, 0f, rayOrigin); // depth 0
     			// 1 WU deep into the screen
-    			Vector3f dir = cam.getWorldCoordinates(click2d, 0.5f).subtract(click3d);
-    			Ray ray  = new Ray(click3d, dir);
-    			CollisionResults results = new CollisionResults();
-    			rootNode.collideWith(ray, results);
-    			Vector3f contactPoint = null;
-    			for (CollisionResult res : results)
-				{
-    				Geometry hit = res.getGeometry();
-    				String hitName = hit.getName();
-    				// Selectable JointSphere always starts with @
-    				if (hitName.equals("SelectPane"))
-    				{
-    					contactPoint = res.getContactPoint();
-            			// We've found a contact point
-            			endJoint.IK1Dof(contactPoint, totalLen);
-    				}
-				}
+    			cam.getWorldCoordinates(click2d, 0.5f, rayDir).subtractLocal(rayOrigin);
+    			// Several events may come per frame: keep the last target, render() solves it
+    			if (intersectDragPlane(rayOrigin, rayDir, dragTarget))
+    				targetPending = true;
 			}
 		};
 	}	
 	
+	/**
+	 * Where the ray o + t d (t >= 0) meets the drag plane
+	 * @return false if it never does: parallel to the plane or pointing away
+	 */
+	private boolean intersectDragPlane(Vector3f o, Vector3f d, Vector3f store)
+	{
+		Vector3f n = dragPlane.getNormal();
+		float nd = n.dot(d);
+		if (Math.abs(nd) < FastMath.ZERO_TOLERANCE)	return false;
+		float t = (dragPlane.getConstant() - n.dot(o)) / nd;
+		if (t < 0)	return false;
+		store.set(d).multLocal(t).addLocal(o);
+		return true;
+	}
+	
+	/**
+	 * One IK solve towards the drag target, on 'pose': the tree's own
+	 * or the solver thread's copy
+	 */
+	private void solve(Pose pose, float x, float y, float z)
+	{
+		if (endJoints != null)
+			solveNearest(pose, x, y, z);
+		else
+			ikSolver.solve(pose, endJoint.getIndex(), x, y, z, totalLen);
+	}
+	
+	/**
+	 * The worker solves on a copy of the current pose, which includes
+	 * any forward kinematics done since it last ran
+	 */
+	private void startSolverThread()
+	{
+		solverThread = new SolverThread(rootJoint.getPose(), new SolverThread.Job()
+		{
+			@Override
+			public void solve(Pose pose, float x, float y, float z)
+			{
+				Skeleton.this.solve(pose, x, y, z);
+			}
+		});
+		if (endJoints != null)
+			multiSolver.setEndJoints(solverThread.getPose(), endJointIds());
+		solverThread.start();
+	}
+	
+	/**
+	 * Wait for the solve in progress, show its result and hand the solvers back
+	 */
+	private void stopSolverThread()
+	{
+		if (solverThread == null)	return;
+		solverThread.stop();
+		Pose solved = solverThread.poll();
+		if (solved != null)
+		{
+			rootJoint.getPose().set(solved);
+			changed = true;
+		}
+		solverThread = null;
+		if (endJoints != null)
+			multiSolver.setEndJoints(rootJoint.getPose(), endJointIds());
+	}
+	
+	private int[] endJointIds()
+	{
+		int[] ids = new int[endJoints.length];
+		for (int k = 0; k < ids.length; k ++)
+			ids[k] = endJoints[k].getIndex();
+		return ids;
+	}
+	
+	/**
+	 * Drag the end joint closest to the target, solve all end joints together
+	 */
+	private void solveNearest(Pose pose, float x, float y, float z)
+	{
+		float[] pos = pose.getWorldPos();
+		int nearest = 0;
+		float best = Float.MAX_VALUE;
+		for (int k = 0; k < endJoints.length; k ++)
+		{
+			int s = 3 * pose.slot(endJoints[k].getIndex());
+			float dx = pos[s] - x, dy = pos[s+1] - y, dz = pos[s+2] - z;
+			float d = dx*dx + dy*dy + dz*dz;
+			if (d < best)
+			{
+				best = d;
+				nearest = k;
+			}
+		}
+		multiSolver.setTarget(nearest, x, y, z);
+		multiSolver.solve();
+	}
+	
 	private volatile int dirX = 0;
 	private volatile int dirY = 0;
 	private InputListener mouseDirListener()
@@ -1,5 +1,7 @@
 package utils;
 
+import java.util.HashMap;
+
 import com.jme3.asset.AssetManager;
 import com.jme3.asset.AssetNotFoundException;
 import com.jme3.material.Material;
@@ -16,10 +18,14 @@ import static com.jme3.math.ColorRGBA.*;
  * Providing my own GLSL shaders and J3ME material definition. 
  * The transparent materials are made in photoshop. 
  * Nice collection. Still adding more. 
+ * Materials are cached by shader, texture, colors and shininess, and shared:
+ * clone() a loaded material before changing it.
  */
 public class MaterialFactory
 {
 	private final AssetManager assetManager;
+	// Shared materials, keyed by everything they're loaded from
+	private final HashMap<String, Material> cache = new HashMap<String, Material>();
 	// singleton instance
 	private static MaterialFactory instance = null;
 	
@@ -55,11 +61,16 @@ public class MaterialFactory
 	/* Texture Repository */
 	public Material loadPlain(String texture, ColorRGBA color)
 	{
-		Material mat = new Material(assetManager, PLAIN_SHADER);
-        mat.setColor("Color", color);
+		String key = PLAIN_SHADER + "|" + texture + "|" + color;
+		Material mat = cache.get(key);
+		if (mat != null)	return mat;
+		
+		mat = new Material(assetManager, PLAIN_SHADER);
+        mat.setColor("Color", color.clone());
         if (texture != null)
             mat.setTexture("ColorMap",
             			assetManager.loadTexture("Textures/" + texture + ".jpg"));
+        cache.put(key, mat);
         return mat;
 	}
 	
@@ -77,7 +88,12 @@ public class MaterialFactory
 			ColorRGBA diffuse, ColorRGBA ambient, ColorRGBA specular, 
 			float shininess)
 	{
-		Material mat = new Material(assetManager, PHONG_SHADER);
+		String key = PHONG_SHADER + "|" + textureFile + "|" + diffuse + "|" + ambient 
+				+ "|" + specular + "|" + shininess;
+		Material mat = cache.get(key);
+		if (mat != null)	return mat;
+		
+		mat = new Material(assetManager, PHONG_SHADER);
 		mat.setBoolean("UseMaterialColors", true);
 		if (textureFile != null)
     	{
@@ -86,16 +102,17 @@ public class MaterialFactory
         	mat.setName(textureFile);
     	}
     	if (diffuse != null)
-        	mat.setColor("Diffuse", diffuse);
+        	mat.setColor("Diffuse", diffuse.clone());
     	else // diffuse null is black
         	mat.setColor("Diffuse", Black);
     		
     	if (ambient != null)
-    		mat.setColor("Ambient", ambient);
+    		mat.setColor("Ambient", ambient.clone());
     	if (specular != null)
-        	mat.setColor("Specular", specular);
+        	mat.setColor("Specular", specular.clone());
     	if (shininess > 0)
     		mat.setFloat("Shininess", shininess);
+    	cache.put(key, mat);
     	return mat;
 	}
 	
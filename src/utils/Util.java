@@ -25,7 +25,14 @@ public class Util
 	 */
 	public static Quaternion qFromTo(Vector3f from, Vector3f to)
 	{
-	    Vector3f v = from.cross(to);
+		return qFromTo(from, to, new Quaternion());
+	}
+	
+	/**
+	 * Same as above, written into 'store' without allocating
+	 */
+	public static Quaternion qFromTo(Vector3f from, Vector3f to, Quaternion store)
+	{
 	    float dot = from.dot(to);
 	    float len2 = from.length() * to.length();
 	    // If the destination vector is 180 opposite of the original
@@ -35,11 +42,13 @@ public class Util
 	    	Vector3f other = 
 	    			(Math.abs(from.dot(Vector3f.UNIT_X)) < 1f) ? 
 	    					Vector3f.UNIT_X : Vector3f.UNIT_Y;
-	    	return new Quaternion().fromAngleAxis(PI, other);
+	    	return store.fromAngleAxis(PI, other);
 	    }
 	    else 
-    	    return new 
-    	    		Quaternion(v.x, v.y, v.z, dot + len2).normalizeLocal();
+	    	// from x to
+    	    return store.set(from.y * to.z - from.z * to.y, 
+    	    				from.z * to.x - from.x * to.z, 
+    	    				from.x * to.y - from.y * to.x, dot + len2).normalizeLocal();
 	}
 	
 	public static boolean floatEq(double x1, double x2)